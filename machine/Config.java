@@ -175,6 +175,55 @@ public final class Config {
 		return result.intValue();
 	}
 
+	private static Long requestLong(String key) {
+		try {
+			String value = getString(key);
+			if (value == null)
+				return null;
+
+			return Long.valueOf(value);
+		}
+		catch (NumberFormatException e) {
+			configError(key + " should be a long integer");
+
+			Lib.assertNotReached();
+			return null;
+		}
+	}
+
+	/**
+	 * Get the value of a long integer key in <tt>nachos.conf</tt>.
+	 * 
+	 * @param key the key to look up.
+	 * @return the value of the specified key.
+	 */
+	public static long getLong(String key) {
+		Long result = requestLong(key);
+
+		if (result == null)
+			configError("missing long " + key);
+
+		return result.longValue();
+	}
+
+	/**
+	 * Get the value of a long integer key in <tt>nachos.conf</tt>, returning
+	 * the specified default if the key does not exist.
+	 * 
+	 * @param key the key to look up.
+	 * @param defaultValue the value to return if the key does not exist.
+	 * @return the value of the specified key, or <tt>defaultValue</tt> if the
+	 * key does not exist.
+	 */
+	public static long getLong(String key, long defaultValue) {
+		Long result = requestLong(key);
+
+		if (result == null)
+			return defaultValue;
+
+		return result.longValue();
+	}
+
 	private static Double requestDouble(String key) {
 		try {
 			String value = getString(key);
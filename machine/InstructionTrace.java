@@ -0,0 +1,226 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A record of the last instructions executed by the processor. For each
+ * instruction, the trace keeps its PC, the instruction word, the memory
+ * address it accessed, and the register it wrote with the value written, as
+ * fixed-size binary records in a ring buffer allocated outside the Java heap.
+ * Recording an instruction is a handful of stores; nothing is formatted until
+ * the trace is decoded.
+ *
+ * <p>
+ * Tracing is enabled by setting <tt>Processor.traceSize</tt> to the number of
+ * instructions to keep. The trace is written to <tt>Processor.traceFile</tt>
+ * (by default <tt>nachos.trace</tt>) in the test directory when Nachos halts
+ * or dies of an unhandled exception. It can then be decoded with
+ *
+ * <pre>
+ * java nachos.machine.InstructionTrace <i>tracefile</i>
+ * </pre>
+ *
+ * which prints the instructions in the format of the <tt>m</tt> debugging
+ * flag, followed by the value written, as with <tt>M</tt>, and the memory
+ * address accessed. An instruction that raised an exception is marked as
+ * such.
+ */
+public final class InstructionTrace {
+	/**
+	 * Allocate a new trace.
+	 *
+	 * @param capacity the number of instructions to keep.
+	 */
+	InstructionTrace(int capacity) {
+		Lib.assertTrue(capacity > 0 && capacity <= maxCapacity);
+
+		this.capacity = capacity;
+		records = ByteBuffer.allocateDirect(capacity * recordLength);
+	}
+
+	/**
+	 * Record an instruction that is about to execute. Until
+	 * <tt>finish()</tt> is called, it is marked as having raised an exception.
+	 *
+	 * @param pc the address of the instruction.
+	 * @param value the instruction word.
+	 * @param address the memory address the instruction accesses, or 0.
+	 */
+	void start(int pc, int value, int address) {
+		position = next * recordLength;
+
+		records.putInt(position, pc);
+		records.putInt(position + 4, value);
+		records.putInt(position + 8, address);
+		records.putInt(position + 12, 0);
+		records.putInt(position + 16, 0);
+
+		if (++next == capacity)
+			next = 0;
+		total++;
+	}
+
+	/**
+	 * Complete the record of the instruction last passed to
+	 * <tt>start()</tt>.
+	 *
+	 * @param register the register written, or 0 if none.
+	 * @param delayed <tt>true</tt> if the write is a delayed load.
+	 * @param result the value written.
+	 */
+	void finish(int register, boolean delayed, int result) {
+		records.putInt(position + 12, register | finished
+				| (delayed ? delayedLoad : 0));
+		records.putInt(position + 16, result);
+	}
+
+	/**
+	 * Write the recorded instructions, oldest first, to a file in the test
+	 * directory.
+	 *
+	 * @param privilege encapsulates privileged access to the Nachos machine.
+	 * @param name the name of the trace file.
+	 */
+	void write(Privilege privilege, String name) {
+		final File file = new File(Machine.testDirectory(), name);
+
+		final int count = (int) Math.min(total, capacity);
+		final int first = (total > capacity) ? next : 0;
+
+		final ByteBuffer header = ByteBuffer.allocate(headerLength);
+		header.putInt(traceMagic);
+		header.putInt(count);
+		header.putLong(total);
+		header.flip();
+
+		// the records wrap around the end of the buffer
+		final ByteBuffer older = records.duplicate();
+		older.limit(Math.min(first + count, capacity) * recordLength);
+		older.position(first * recordLength);
+
+		final ByteBuffer newer = records.duplicate();
+		newer.limit((first + count > capacity) ? next * recordLength : 0);
+		newer.position(0);
+
+		final IOException[] failure = new IOException[1];
+
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+				try {
+					RandomAccessFile out = new RandomAccessFile(file, "rw");
+					out.setLength(0);
+
+					FileChannel channel = out.getChannel();
+					channel.write(new ByteBuffer[] { header, older, newer });
+					out.close();
+				}
+				catch (IOException e) {
+					failure[0] = e;
+				}
+			}
+		});
+
+		if (failure[0] != null) {
+			System.out.println("Instruction trace: could not write " + name
+					+ ": " + failure[0].getMessage());
+			return;
+		}
+
+		System.out.println("Instruction trace: " + count + " of " + total
+				+ " instructions written to " + name);
+	}
+
+	/**
+	 * Decode a trace file and print it.
+	 *
+	 * @param args the name of the trace file.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 1) {
+			System.err.println("usage: java nachos.machine.InstructionTrace "
+					+ "<tracefile>");
+			System.exit(1);
+		}
+
+		RandomAccessFile in = new RandomAccessFile(args[0], "r");
+		FileChannel channel = in.getChannel();
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+				0, channel.size());
+		in.close();
+
+		if (buffer.getInt() != traceMagic) {
+			System.err.println(args[0] + " is not an instruction trace");
+			System.exit(1);
+		}
+
+		int count = buffer.getInt();
+		long total = buffer.getLong();
+
+		System.out.println("last " + count + " of " + total + " instructions");
+
+		StringBuffer line = new StringBuffer();
+
+		for (int i = 0; i < count; i++) {
+			int pc = buffer.getInt();
+			int value = buffer.getInt();
+			int address = buffer.getInt();
+			int register = buffer.getInt();
+			int result = buffer.getInt();
+
+			line.setLength(0);
+			line.append("PC=0x" + Lib.toHexString(pc) + "\t");
+			line.append(Processor.disassemble(pc, value));
+
+			if ((register & finished) == 0) {
+				line.append("(exception)");
+			}
+			else if ((register & registerMask) != 0) {
+				line.append("#0x" + Lib.toHexString(result));
+				if ((register & delayedLoad) != 0)
+					line.append(" (delayed load)");
+			}
+
+			if (Processor.accessesMemory(value))
+				line.append(" @0x" + Lib.toHexString(address));
+
+			System.out.println(line);
+		}
+	}
+
+	private int capacity;
+
+	/** The index of the next record to write. */
+	private int next = 0;
+
+	/** The byte offset of the record being written. */
+	private int position = 0;
+
+	/** The number of instructions recorded since Nachos started. */
+	private long total = 0;
+
+	private ByteBuffer records;
+
+	/**
+	 * Record layout: PC, instruction word, memory address, register written
+	 * with flags, value written.
+	 */
+	private static final int recordLength = 20;
+
+	private static final int headerLength = 16;
+
+	private static final int maxCapacity = Integer.MAX_VALUE / recordLength;
+
+	private static final int traceMagic = 0x4E545201;
+
+	private static final int registerMask = 0xFF, finished = 0x100,
+			delayedLoad = 0x200;
+}
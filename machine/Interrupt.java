@@ -4,10 +4,6 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
-
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
  * hardware provides a method (<tt>setStatus()</tt>) to enable or disable
@@ -24,6 +20,7 @@ import java.util.SortedSet;
  * <ul>
  * <li>interrupts are enabled, when they were previously disabled
  * <li>a MIPS instruction is executed
+ * <li>the idle thread skips ahead to the next interrupt with <tt>idle()</tt>
  * </ul>
  * 
  * <p>
@@ -52,7 +49,7 @@ public final class Interrupt {
 		privilege.interrupt = new InterruptPrivilege();
 
 		enabled = false;
-		pending = new TreeSet<PendingInterrupt>();
+		pending = new InterruptQueue();
 	}
 
 	/**
@@ -119,16 +116,52 @@ public final class Interrupt {
 		return !enabled;
 	}
 
+	/**
+	 * Advance the simulated time straight to the next pending interrupt, and
+	 * invoke the handlers that are then due. The time skipped is charged to
+	 * <tt>Stats.idleTicks</tt> rather than to kernel or user time. Does
+	 * nothing if no interrupts are pending.
+	 * 
+	 * <p>
+	 * This is meant to be called by the idle thread, when no other thread is
+	 * ready to run and so nothing can happen before the next interrupt.
+	 * Interrupts must be disabled.
+	 */
+	public void idle() {
+		Lib.assertTrue(disabled());
+
+		if (pending.isEmpty())
+			return;
+
+		Stats stats = privilege.stats;
+
+		long idleTicks = pending.firstTime() - stats.totalTicks;
+		if (idleTicks > 0) {
+			stats.idleTicks += idleTicks;
+			stats.totalTicks += idleTicks;
+		}
+
+		if (Lib.test(dbgInt))
+			System.out.println("== Idle until " + stats.totalTicks + " ==");
+
+		checkIfDue();
+	}
+
 	private void schedule(long when, String type, Runnable handler) {
 		Lib.assertTrue(when > 0);
 
 		long time = privilege.stats.totalTicks + when;
-		PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
 		Lib.debug(dbgInt, "Scheduling the " + type
 				+ " interrupt handler at time = " + time);
 
-		pending.add(toOccur);
+		pending.add(time, type, handler);
+	}
+
+	private void cancel(Runnable handler) {
+		int removed = pending.remove(handler);
+
+		Lib.debug(dbgInt, "Cancelled " + removed + " interrupt(s)");
 	}
 
 	private void tick(boolean inKernelMode) {
@@ -151,6 +184,30 @@ public final class Interrupt {
 		enabled = true;
 	}
 
+	private long userTicksUntilDue() {
+		// per-tick debugging output must not be skipped
+		if (Lib.test(dbgInt))
+			return 0;
+
+		if (pending.isEmpty())
+			return Long.MAX_VALUE;
+
+		long quiet = pending.firstTime() - 1 - privilege.stats.totalTicks;
+		if (quiet <= 0)
+			return 0;
+
+		return quiet / Stats.UserTick;
+	}
+
+	private void chargeUserTicks(long count) {
+		Lib.assertTrue(count >= 0 && count <= userTicksUntilDue());
+
+		Stats stats = privilege.stats;
+
+		stats.userTicks += count * Stats.UserTick;
+		stats.totalTicks += count * Stats.UserTick;
+	}
+
 	private void checkIfDue() {
 		long time = privilege.stats.totalTicks;
 
@@ -162,24 +219,21 @@ public final class Interrupt {
 		if (pending.isEmpty())
 			return;
 
-		if (((PendingInterrupt) pending.first()).time > time)
+		if (pending.firstTime() > time)
 			return;
 
 		Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 
-		while (!pending.isEmpty()
-				&& ((PendingInterrupt) pending.first()).time <= time) {
-			PendingInterrupt next = (PendingInterrupt) pending.first();
-			pending.remove(next);
-
-			Lib.assertTrue(next.time <= time);
+		while (!pending.isEmpty() && pending.firstTime() <= time) {
+			String type = pending.firstType();
+			Runnable handler = pending.removeFirst();
 
 			if (privilege.processor != null)
 				privilege.processor.flushPipe();
 
-			Lib.debug(dbgInt, "  " + next.type);
+			Lib.debug(dbgInt, "  " + type);
 
-			next.handler.run();
+			handler.run();
 		}
 
 		Lib.debug(dbgInt, "  (end of list)");
@@ -190,55 +244,16 @@ public final class Interrupt {
 				+ ", interrupts " + (enabled ? "on" : "off"));
 		System.out.println("Pending interrupts:");
 
-		for (Iterator i = pending.iterator(); i.hasNext();) {
-			PendingInterrupt toOccur = (PendingInterrupt) i.next();
-			System.out.println("  " + toOccur.type + ", scheduled at "
-					+ toOccur.time);
-		}
+		pending.print();
 
 		System.out.println("  (end of list)");
 	}
 
-	private class PendingInterrupt implements Comparable {
-		PendingInterrupt(long time, String type, Runnable handler) {
-			this.time = time;
-			this.type = type;
-			this.handler = handler;
-			this.id = numPendingInterruptsCreated++;
-		}
-
-		public int compareTo(Object o) {
-			PendingInterrupt toOccur = (PendingInterrupt) o;
-
-			// can't return 0 for unequal objects, so check all fields
-			if (time < toOccur.time)
-				return -1;
-			else if (time > toOccur.time)
-				return 1;
-			else if (id < toOccur.id)
-				return -1;
-			else if (id > toOccur.id)
-				return 1;
-			else
-				return 0;
-		}
-
-		long time;
-
-		String type;
-
-		Runnable handler;
-
-		private long id;
-	}
-
-	private long numPendingInterruptsCreated = 0;
-
 	private Privilege privilege;
 
 	private boolean enabled;
 
-	private TreeSet<PendingInterrupt> pending;
+	private InterruptQueue pending;
 
 	private static final char dbgInt = 'i';
 
@@ -247,8 +262,20 @@ public final class Interrupt {
 			Interrupt.this.schedule(when, type, handler);
 		}
 
+		public void cancel(Runnable handler) {
+			Interrupt.this.cancel(handler);
+		}
+
 		public void tick(boolean inKernelMode) {
 			Interrupt.this.tick(inKernelMode);
 		}
+
+		public long userTicksUntilDue() {
+			return Interrupt.this.userTicksUntilDue();
+		}
+
+		public void chargeUserTicks(long count) {
+			Interrupt.this.chargeUserTicks(count);
+		}
 	}
 }
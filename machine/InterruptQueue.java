@@ -0,0 +1,382 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * The pending interrupts of an interrupt controller, ordered by the time at
+ * which they occur. Interrupts scheduled for the same time occur in the order
+ * they were scheduled.
+ *
+ * <p>
+ * The queue is a binary min-heap of slot numbers, kept in an <tt>int</tt>
+ * array; each slot holds the time, sequence number, type and handler of one
+ * pending interrupt, in parallel arrays. Slots are recycled when their
+ * interrupt is removed, and the arrays only grow, so once the queue has
+ * reached its largest size, scheduling and dispatching interrupts allocates
+ * nothing.
+ */
+final class InterruptQueue {
+	/**
+	 * Allocate a new, empty queue.
+	 */
+	InterruptQueue() {
+		heap = new int[initialCapacity];
+		times = new long[initialCapacity];
+		sequence = new long[initialCapacity];
+		types = new String[initialCapacity];
+		handlers = new Runnable[initialCapacity];
+		free = new int[initialCapacity];
+
+		for (int i = 0; i < initialCapacity; i++)
+			free[i] = initialCapacity - 1 - i;
+		numFree = initialCapacity;
+	}
+
+	/**
+	 * Test whether the queue is empty.
+	 *
+	 * @return <tt>true</tt> if no interrupts are pending.
+	 */
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Return the number of pending interrupts.
+	 *
+	 * @return the number of pending interrupts.
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Add an interrupt to the queue.
+	 *
+	 * @param time the time at which the interrupt occurs.
+	 * @param type a name for the type of interrupt.
+	 * @param handler the interrupt handler.
+	 */
+	void add(long time, String type, Runnable handler) {
+		if (numFree == 0)
+			grow();
+
+		int slot = free[--numFree];
+		times[slot] = time;
+		sequence[slot] = numAdded++;
+		types[slot] = type;
+		handlers[slot] = handler;
+
+		siftUp(size++, slot);
+	}
+
+	/**
+	 * Return the time of the first interrupt. The queue must not be empty.
+	 *
+	 * @return the time of the first interrupt.
+	 */
+	long firstTime() {
+		Lib.assertTrue(size > 0);
+
+		return times[heap[0]];
+	}
+
+	/**
+	 * Return the type of the first interrupt. The queue must not be empty.
+	 *
+	 * @return the type of the first interrupt.
+	 */
+	String firstType() {
+		Lib.assertTrue(size > 0);
+
+		return types[heap[0]];
+	}
+
+	/**
+	 * Remove the first interrupt from the queue and return its handler. The
+	 * queue must not be empty.
+	 *
+	 * @return the handler of the first interrupt.
+	 */
+	Runnable removeFirst() {
+		Lib.assertTrue(size > 0);
+
+		int slot = heap[0];
+		Runnable handler = handlers[slot];
+
+		types[slot] = null;
+		handlers[slot] = null;
+		free[numFree++] = slot;
+
+		if (--size > 0)
+			siftDown(0, heap[size]);
+
+		return handler;
+	}
+
+	/**
+	 * Remove every pending interrupt with the specified handler. This takes
+	 * time linear in the size of the queue.
+	 *
+	 * @param handler the handler of the interrupts to remove.
+	 * @return the number of interrupts removed.
+	 */
+	int remove(Runnable handler) {
+		int kept = 0;
+
+		for (int i = 0; i < size; i++) {
+			int slot = heap[i];
+			if (handlers[slot] != handler) {
+				heap[kept++] = slot;
+				continue;
+			}
+
+			types[slot] = null;
+			handlers[slot] = null;
+			free[numFree++] = slot;
+		}
+
+		int removed = size - kept;
+		if (removed == 0)
+			return 0;
+
+		// rebuild the heap from the interrupts that are left
+		size = kept;
+		for (int i = size / 2 - 1; i >= 0; i--)
+			siftDown(i, heap[i]);
+
+		return removed;
+	}
+
+	/**
+	 * Print the pending interrupts, in the order in which they will occur.
+	 */
+	void print() {
+		int[] order = new int[size];
+		System.arraycopy(heap, 0, order, 0, size);
+
+		// insertion sort; this is only for debugging output
+		for (int i = 1; i < size; i++) {
+			int slot = order[i];
+			int j = i;
+			for (; j > 0 && before(slot, order[j - 1]); j--)
+				order[j] = order[j - 1];
+			order[j] = slot;
+		}
+
+		for (int i = 0; i < size; i++) {
+			System.out.println("  " + types[order[i]] + ", scheduled at "
+					+ times[order[i]]);
+		}
+	}
+
+	private boolean before(int a, int b) {
+		if (times[a] != times[b])
+			return times[a] < times[b];
+		else
+			return sequence[a] < sequence[b];
+	}
+
+	private void siftUp(int index, int slot) {
+		while (index > 0) {
+			int parent = (index - 1) / 2;
+			if (!before(slot, heap[parent]))
+				break;
+
+			heap[index] = heap[parent];
+			index = parent;
+		}
+
+		heap[index] = slot;
+	}
+
+	private void siftDown(int index, int slot) {
+		while (true) {
+			int child = index * 2 + 1;
+			if (child >= size)
+				break;
+
+			if (child + 1 < size && before(heap[child + 1], heap[child]))
+				child++;
+
+			if (!before(heap[child], slot))
+				break;
+
+			heap[index] = heap[child];
+			index = child;
+		}
+
+		heap[index] = slot;
+	}
+
+	private void grow() {
+		int capacity = heap.length;
+		int newCapacity = capacity * 2;
+
+		heap = copyOf(heap, newCapacity);
+		times = copyOf(times, newCapacity);
+		sequence = copyOf(sequence, newCapacity);
+
+		String[] newTypes = new String[newCapacity];
+		System.arraycopy(types, 0, newTypes, 0, capacity);
+		types = newTypes;
+
+		Runnable[] newHandlers = new Runnable[newCapacity];
+		System.arraycopy(handlers, 0, newHandlers, 0, capacity);
+		handlers = newHandlers;
+
+		// every slot was in use, so the new ones are all free
+		free = new int[newCapacity];
+		for (int i = 0; i < capacity; i++)
+			free[i] = newCapacity - 1 - i;
+		numFree = capacity;
+	}
+
+	private static int[] copyOf(int[] array, int length) {
+		int[] result = new int[length];
+		System.arraycopy(array, 0, result, 0, array.length);
+		return result;
+	}
+
+	private static long[] copyOf(long[] array, int length) {
+		long[] result = new long[length];
+		System.arraycopy(array, 0, result, 0, array.length);
+		return result;
+	}
+
+	/**
+	 * Measure the rate at which interrupts can be scheduled and dispatched
+	 * with 10, 1000 and 100000 interrupts pending, and compare it to a
+	 * <tt>TreeSet</tt> of interrupt objects. Each operation dispatches the
+	 * first interrupt and schedules a new one at a random time in the
+	 * future, keeping the queue size constant.
+	 *
+	 * <pre>
+	 * java nachos.machine.InterruptQueue [<i>operations</i>]
+	 * </pre>
+	 */
+	public static void main(String[] args) {
+		int operations = (args.length > 0) ? Integer.parseInt(args[0])
+				: 10000000;
+
+		int[] sizes = { 10, 1000, 100000 };
+
+		System.out.println("  pending     heap ns/op  treeset ns/op");
+
+		for (int i = 0; i < sizes.length; i++) {
+			// the first rounds warm up the JIT
+			double heapTime = 0, treeTime = 0;
+			for (int round = 0; round < 3; round++) {
+				heapTime = benchmarkHeap(sizes[i], operations);
+				treeTime = benchmarkTreeSet(sizes[i], operations);
+			}
+
+			System.out.println(Lib.pad(Integer.toString(sizes[i]), 9)
+					+ Lib.pad(format(heapTime), 15)
+					+ Lib.pad(format(treeTime), 15));
+		}
+	}
+
+	private static double benchmarkHeap(int pending, int operations) {
+		Random random = new Random(0);
+		Runnable handler = new Runnable() {
+			public void run() {
+			}
+		};
+
+		InterruptQueue queue = new InterruptQueue();
+		long time = 0;
+		for (int i = 0; i < pending; i++)
+			queue.add(1 + random.nextInt(benchmarkSpread), "benchmark", handler);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < operations; i++) {
+			time = queue.firstTime();
+			queue.removeFirst().run();
+			queue.add(time + 1 + random.nextInt(benchmarkSpread), "benchmark",
+					handler);
+		}
+
+		return (double) (System.nanoTime() - start) / operations;
+	}
+
+	private static double benchmarkTreeSet(int pending, int operations) {
+		Random random = new Random(0);
+		Runnable handler = new Runnable() {
+			public void run() {
+			}
+		};
+
+		TreeSet<BenchmarkInterrupt> queue = new TreeSet<BenchmarkInterrupt>();
+		long time = 0, id = 0;
+		for (int i = 0; i < pending; i++) {
+			queue.add(new BenchmarkInterrupt(1 + random
+					.nextInt(benchmarkSpread), id++, handler));
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < operations; i++) {
+			BenchmarkInterrupt first = queue.first();
+			queue.remove(first);
+			time = first.time;
+			first.handler.run();
+			queue.add(new BenchmarkInterrupt(time + 1
+					+ random.nextInt(benchmarkSpread), id++, handler));
+		}
+
+		return (double) (System.nanoTime() - start) / operations;
+	}
+
+	private static String format(double value) {
+		return Long.toString(Math.round(value * 10) / 10) + "."
+				+ (Math.round(value * 10) % 10);
+	}
+
+
+	/** The interrupt objects <tt>Interrupt</tt> used to allocate. */
+	private static class BenchmarkInterrupt implements
+			Comparable<BenchmarkInterrupt> {
+		BenchmarkInterrupt(long time, long id, Runnable handler) {
+			this.time = time;
+			this.id = id;
+			this.handler = handler;
+		}
+
+		public int compareTo(BenchmarkInterrupt other) {
+			if (time != other.time)
+				return (time < other.time) ? -1 : 1;
+			else if (id != other.id)
+				return (id < other.id) ? -1 : 1;
+			else
+				return 0;
+		}
+
+		long time, id;
+
+		Runnable handler;
+	}
+
+	/** The heap, as slot numbers; only the first <tt>size</tt> are used. */
+	private int[] heap;
+	private int size = 0;
+
+	/** The contents of each slot. */
+	private long[] times;
+	private long[] sequence;
+	private String[] types;
+	private Runnable[] handlers;
+
+	/** The slots not in use. */
+	private int[] free;
+	private int numFree;
+
+	/** The number of interrupts ever added, to order equal times. */
+	private long numAdded = 0;
+
+	private static final int initialCapacity = 16;
+
+	private static final int benchmarkSpread = 1000;
+}
@@ -37,6 +37,13 @@ public abstract class Kernel {
 	 */
 	public abstract void run();
 
+	/**
+	 * Print this kernel's statistics. Called by <tt>Machine.halt()</tt>,
+	 * after the machine's statistics. By default there are none.
+	 */
+	public void printStats() {
+	}
+
 	/**
 	 * Terminate this kernel. Never returns.
 	 */
@@ -2,6 +2,9 @@
 
 package nachos.machine;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
 import java.lang.reflect.Field;
@@ -449,6 +452,27 @@ public final class Lib {
 		return result;
 	}
 
+	/**
+	 * Pad the string representation of a value with spaces to a column width,
+	 * on the left, or on the right if the width is negative.
+	 * 
+	 * @param value the value to pad.
+	 * @param width the width of the column.
+	 * @return the padded string.
+	 */
+	public static String pad(Object value, int width) {
+		StringBuffer buffer = new StringBuffer(value.toString());
+
+		while (buffer.length() < Math.abs(width)) {
+			if (width > 0)
+				buffer.insert(0, ' ');
+			else
+				buffer.append(' ');
+		}
+
+		return buffer.toString();
+	}
+
 	/**
 	 * Divide two non-negative integers, round the quotient up to the nearest
 	 * integer, and return it.
@@ -504,14 +528,13 @@ public final class Lib {
 	 */
 	public static Object constructObject(String className) {
 		try {
-			// kamil - workaround for Java 1.4
-			// Thanks to Ka-Hing Cheung for the suggestion.
-			// Fixed for Java 1.5 by geels
-		        Class<?> cls = loadClass(className);
-			Class<?>[] param_types = new Class[0];
-			Constructor<?> cons = cls.getConstructor(param_types);
-			Object[] params = new Object[0];
-			return cons.newInstance(params);
+			// not Constructor.newInstance(), which generates an accessor
+			// class after a few calls to the same constructor, and the
+			// security manager does not let kernels create class loaders
+			Class<?> cls = loadClass(className);
+			MethodHandle cons = MethodHandles.publicLookup().findConstructor(
+					cls, MethodType.methodType(void.class));
+			return cons.invoke();
 		}
 		catch (Throwable e) {
 			Machine.terminate(e);
@@ -100,15 +100,24 @@ public final class Machine {
 			throw (ThreadDeath) e;
 
 		e.printStackTrace();
+		if (processor != null)
+			processor.writeTrace();
 		terminate();
 	}
 
 	/**
-	 * Print stats, and terminate Nachos.
+	 * Print stats and the user program profile, write the instruction trace,
+	 * and terminate Nachos.
 	 */
 	public static void halt() {
 		System.out.print("Machine halting!\n\n");
 		stats.print();
+		if (Kernel.kernel != null)
+			Kernel.kernel.printStats();
+		if (processor != null) {
+			processor.printProfile();
+			processor.writeTrace();
+		}
 		terminate();
 	}
 
@@ -369,6 +378,16 @@ public final class Machine {
 		return networkLink;
 	}
 
+	/**
+	 * Return the directory containing the test programs. This is the only
+	 * directory Nachos is allowed to write files in.
+	 * 
+	 * @return the test directory.
+	 */
+	static File testDirectory() {
+		return testDirectory;
+	}
+
 	/**
 	 * Return the autograder.
 	 * 
@@ -4,6 +4,14 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -40,6 +48,10 @@ public final class Processor {
 		// let config file value override
 		usingTLB = Config.getBoolean ("Processor.usingTLB", usingTLB);
 
+		tlbSize = Config.getInteger("Processor.tlbSize", tlbSize);
+		tlbWays = Config.getInteger("Processor.tlbWays", tlbSize);
+		Lib.assertTrue(tlbSize > 0 && tlbWays > 0 && tlbSize % tlbWays == 0);
+
 		this.numPhysPages = numPhysPages;
 
 		for (int i = 0; i < numUserRegisters; i++)
@@ -47,10 +59,54 @@ public final class Processor {
 
 		mainMemory = new byte[pageSize * numPhysPages];
 
+		decodeCache = new Decoded[numPhysPages][];
+
+		// the micro-TLB would skip the translation debugging output
+		if (!Lib.test(dbgProcessor)) {
+			microVPN = new int[microTLBSize];
+			microNumber = new int[microTLBSize];
+			microTLB = new TranslationEntry[microTLBSize];
+		}
+
+		saveSnapshot = Config.getString("Processor.saveSnapshot");
+		saveSnapshotAt = Config.getLong("Processor.saveSnapshotAt", 0);
+		loadSnapshot = Config.getString("Processor.loadSnapshot");
+
+		if (Config.getBoolean("Processor.profile", false))
+			profiler = new Profiler(Config.getInteger(
+					"Processor.profileInterval", 1));
+
+		int traceSize = Config.getInteger("Processor.traceSize", 0);
+		if (traceSize > 0) {
+			trace = new InstructionTrace(traceSize);
+			traceFile = Config.getString("Processor.traceFile", "nachos.trace");
+		}
+
+		// handlers skip the per-instruction debugging output
+		usingHandlers = !Lib.test(dbgProcessor) && !Lib.test(dbgDisassemble)
+				&& !Lib.test(dbgFullDisassemble);
+
+		// so does the block-dispatch cache
+		String engine = Config.getString("Processor.engine", "interpreter");
+		usingBlockEngine = engine.equals("block") && usingHandlers;
+
+		if (usingBlockEngine)
+			blockCache = new Block[numPhysPages][];
+
 		if (usingTLB) {
 			translations = new TranslationEntry[tlbSize];
 			for (int i = 0; i < tlbSize; i++)
 				translations[i] = new TranslationEntry();
+
+			// only valid entries are linked into the lookup chains
+			tlbChains = new int[Integer.highestOneBit(tlbSize) * 2];
+			Arrays.fill(tlbChains, -1);
+			tlbNext = new int[tlbSize];
+
+			tlbPolicy = new RoundRobinPolicy();
+
+			privilege.stats.tlbEntryHits = new long[tlbSize];
+			privilege.stats.tlbSetMisses = new long[tlbSize / tlbWays];
 		}
 		else {
 			translations = null;
@@ -91,9 +147,27 @@ public final class Processor {
 
 		Machine.autoGrader().runProcessor(privilege);
 
+		if (loadSnapshot != null) {
+			restoreSnapshot(loadSnapshot);
+			loadSnapshot = null;
+		}
+
 		Instruction inst = new Instruction();
 
 		while (true) {
+			if (saveSnapshot != null
+					&& privilege.stats.totalTicks >= saveSnapshotAt) {
+				writeSnapshot(saveSnapshot);
+				saveSnapshot = null;
+			}
+
+			if (usingBlockEngine) {
+				if (runBlocks(inst))
+					continue;
+			}
+			else if (runBatch(inst))
+				continue;
+
 			try {
 				inst.run();
 			}
@@ -105,6 +179,332 @@ public final class Processor {
 		}
 	}
 
+	/**
+	 * Write the state of the processor to a snapshot file in the test
+	 * directory: the registers, the delayed load in progress, the current page
+	 * table or TLB, and all of main memory. The file is written with a single
+	 * bulk write.
+	 * 
+	 * <p>
+	 * Only the machine state is saved. The kernel's threads, processes, open
+	 * files and pending interrupts live in Java objects and Java thread
+	 * stacks, and are not part of the snapshot.
+	 * 
+	 * @param name the name of the snapshot file.
+	 */
+	private void writeSnapshot(String name) {
+		int numEntries = (translations == null) ? 0 : translations.length;
+
+		final ByteBuffer buffer = ByteBuffer.allocate(snapshotHeaderLength
+				+ (numUserRegisters + 3) * 4 + numEntries * 12
+				+ mainMemory.length);
+
+		buffer.putInt(snapshotMagic);
+		buffer.putInt(numUserRegisters);
+		buffer.putInt(usingTLB ? 1 : 0);
+		buffer.putInt(numEntries);
+		buffer.putInt(mainMemory.length);
+
+		for (int i = 0; i < numUserRegisters; i++)
+			buffer.putInt(registers[i]);
+
+		buffer.putInt(loadTarget);
+		buffer.putInt(loadValue);
+		buffer.putInt(loadMask);
+
+		for (int i = 0; i < numEntries; i++) {
+			TranslationEntry entry = translations[i];
+			buffer.putInt(entry.vpn);
+			buffer.putInt(entry.ppn);
+			buffer.putInt((entry.valid ? 1 : 0) | (entry.readOnly ? 2 : 0)
+					| (entry.used ? 4 : 0) | (entry.dirty ? 8 : 0));
+		}
+
+		buffer.put(mainMemory);
+		buffer.flip();
+
+		final File file = new File(Machine.testDirectory(), name);
+		final IOException[] failure = new IOException[1];
+
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+				try {
+					RandomAccessFile out = new RandomAccessFile(file, "rw");
+					out.setLength(0);
+					out.getChannel().write(buffer);
+					out.close();
+				}
+				catch (IOException e) {
+					failure[0] = e;
+				}
+			}
+		});
+
+		if (failure[0] != null)
+			Lib.assertNotReached("could not write snapshot " + name + ": "
+					+ failure[0].getMessage());
+
+		Lib.assertTrue(!buffer.hasRemaining(), "could not write snapshot "
+				+ name);
+
+		Lib.debug(dbgProcessor, "saved snapshot " + name + " at tick "
+				+ privilege.stats.totalTicks);
+	}
+
+	/**
+	 * Replace the state of the processor with the contents of a snapshot file
+	 * in the test directory, which is mapped into memory and read in bulk. The
+	 * snapshot must have been taken on a processor with the same amount of
+	 * memory and the same kind of translation, and the current page table, if
+	 * any, must have the same length as the saved one; its entries are
+	 * overwritten in place.
+	 * 
+	 * @param name the name of the snapshot file.
+	 */
+	private void restoreSnapshot(String name) {
+		final File file = new File(Machine.testDirectory(), name);
+		final MappedByteBuffer[] mapped = new MappedByteBuffer[1];
+		final IOException[] failure = new IOException[1];
+
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+				try {
+					RandomAccessFile in = new RandomAccessFile(file, "r");
+					FileChannel channel = in.getChannel();
+					mapped[0] = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+							channel.size());
+					in.close();
+				}
+				catch (IOException e) {
+					failure[0] = e;
+				}
+			}
+		});
+
+		if (failure[0] != null)
+			Lib.assertNotReached("could not read snapshot " + name + ": "
+					+ failure[0].getMessage());
+
+		ByteBuffer buffer = mapped[0];
+		int numEntries = (translations == null) ? 0 : translations.length;
+
+		Lib.assertTrue(buffer.getInt() == snapshotMagic
+				&& buffer.getInt() == numUserRegisters
+				&& buffer.getInt() == (usingTLB ? 1 : 0)
+				&& buffer.getInt() == numEntries
+				&& buffer.getInt() == mainMemory.length,
+				"snapshot " + name + " does not match this machine");
+
+		for (int i = 0; i < numUserRegisters; i++)
+			registers[i] = buffer.getInt();
+
+		loadTarget = buffer.getInt();
+		loadValue = buffer.getInt();
+		loadMask = buffer.getInt();
+
+		for (int i = 0; i < numEntries; i++) {
+			int vpn = buffer.getInt();
+			int ppn = buffer.getInt();
+			int bits = buffer.getInt();
+
+			TranslationEntry entry = new TranslationEntry(vpn, ppn,
+					(bits & 1) != 0, (bits & 2) != 0, (bits & 4) != 0,
+					(bits & 8) != 0);
+
+			if (usingTLB) {
+				writeTLBEntry(i, entry);
+			}
+			else if (translations[i] == null) {
+				translations[i] = entry;
+			}
+			else {
+				// the kernel may hold on to its page table entries
+				translations[i].vpn = entry.vpn;
+				translations[i].ppn = entry.ppn;
+				translations[i].valid = entry.valid;
+				translations[i].readOnly = entry.readOnly;
+				translations[i].used = entry.used;
+				translations[i].dirty = entry.dirty;
+			}
+		}
+
+		buffer.get(mainMemory);
+
+		// the caches check themselves against memory, but not against this
+		flushMicroTLB();
+
+		Lib.debug(dbgProcessor, "loaded snapshot " + name);
+	}
+
+	/**
+	 * Interpret instructions back to back until the next interrupt is about to
+	 * become due, instead of ticking the interrupt controller after each one.
+	 * The ticks are charged all at once when the batch ends, or just before
+	 * an exception is handled, so simulated time advances exactly as it does
+	 * when ticking once per instruction.
+	 * 
+	 * @param inst the instruction state to execute with.
+	 * @return <tt>true</tt> if a batch was run, <tt>false</tt> if the next
+	 * instruction must be followed by an ordinary tick.
+	 */
+	private boolean runBatch(Instruction inst) {
+		long length = Math.min(privilege.interrupt.userTicksUntilDue(),
+				maxBatchLength);
+		if (length == 0)
+			return false;
+
+		int count = 0;
+
+		try {
+			while (count < length) {
+				inst.run();
+				count++;
+			}
+		}
+		catch (MipsException e) {
+			privilege.interrupt.chargeUserTicks(count);
+			e.handle();
+			privilege.interrupt.tick(false);
+			return true;
+		}
+
+		privilege.interrupt.chargeUserTicks(count);
+		return true;
+	}
+
+	/**
+	 * Like <tt>runBatch()</tt>, but run each hot basic block from the block
+	 * cache, and interpret only the instructions in between. The ticks of the
+	 * whole batch are charged at once when it ends, or just before an
+	 * exception is handled.
+	 * 
+	 * @param inst the instruction state to execute with.
+	 * @return <tt>true</tt> if a batch was run, <tt>false</tt> if the next
+	 * instruction must be followed by an ordinary tick.
+	 */
+	private boolean runBlocks(Instruction inst) {
+		long length = Math.min(privilege.interrupt.userTicksUntilDue(),
+				maxBatchLength);
+		if (length == 0)
+			return false;
+
+		int count = 0;
+
+		try {
+			while (count < length) {
+				int ran = runBlock(inst, (int) (length - count));
+				if (ran > 0) {
+					count += ran;
+				}
+				else {
+					inst.run();
+					count++;
+				}
+			}
+		}
+		catch (MipsException e) {
+			privilege.interrupt.chargeUserTicks(count);
+			e.handle();
+			privilege.interrupt.tick(false);
+			return true;
+		}
+
+		privilege.interrupt.chargeUserTicks(count);
+		return true;
+	}
+
+	/**
+	 * Run the cached basic block starting at the current PC, if there is one,
+	 * it is hot enough, and it fits in the rest of the batch. A block's
+	 * instructions are dispatched straight from its array, without fetching,
+	 * translating or looking up each one, and with a single TLB use for the
+	 * whole block.
+	 * 
+	 * @param inst the instruction state to execute the block with.
+	 * @param limit the most instructions the block may run.
+	 * @return the number of instructions run, or 0 if the interpreter should
+	 * execute the next instruction instead.
+	 * @throws MipsException if an instruction of the block traps, after
+	 * charging the user ticks of the instructions run before it.
+	 */
+	private int runBlock(Instruction inst, int limit) throws MipsException {
+		int pc = registers[regPC];
+
+		// blocks assume straight-line execution, so not in a delay slot
+		if (registers[regNextPC] != pc + 4 || (pc & 0x3) != 0)
+			return 0;
+
+		// let the interpreter take any fault on this fetch
+		int number = findEntry(pageFromAddress(pc));
+		if (number == -1)
+			return 0;
+
+		TranslationEntry entry = translations[number];
+		if (entry.ppn < 0 || entry.ppn >= numPhysPages)
+			return 0;
+
+		int paddr = entry.ppn * pageSize + offsetFromAddress(pc);
+
+		Block[] page = blockCache[entry.ppn];
+		if (page == null) {
+			page = new Block[pageSize / 4];
+			blockCache[entry.ppn] = page;
+		}
+
+		int index = (paddr % pageSize) / 4;
+
+		Block block = page[index];
+		if (block == null) {
+			block = new Block();
+			page[index] = block;
+		}
+
+		if (block.count < blockThreshold) {
+			block.count++;
+			return 0;
+		}
+
+		if (block.instructions == null || !block.matches(mainMemory, paddr))
+			block.decode(paddr);
+
+		int length = block.instructions.length;
+		if (length == 0 || length > limit)
+			return 0;
+
+		// the fetch translation is only done once for the whole block
+		entry.used = true;
+
+		blockBroken = false;
+
+		for (int i = 0; i < length; i++) {
+			try {
+				inst.run(block.instructions[i]);
+			}
+			catch (MipsException e) {
+				countTLBHits(number, i + 1);
+				privilege.interrupt.chargeUserTicks(i);
+				throw e;
+			}
+
+			// a store rewrote code on this page; re-check before going on
+			if (blockBroken) {
+				countTLBHits(number, i + 1);
+				return i + 1;
+			}
+		}
+
+		countTLBHits(number, length);
+		return length;
+	}
+
+	/**
+	 * Count hits on a TLB entry, if using a TLB.
+	 */
+	private void countTLBHits(int number, int count) {
+		if (usingTLB)
+			privilege.stats.tlbEntryHits[number] += count;
+	}
+
 	/**
 	 * Read and return the contents of the specified CPU register.
 	 * 
@@ -175,6 +575,7 @@ public final class Processor {
 		Lib.assertTrue(!usingTLB);
 
 		this.translations = pageTable;
+		flushMicroTLB();
 	}
 
 	/**
@@ -188,6 +589,63 @@ public final class Processor {
 		return tlbSize;
 	}
 
+	/**
+	 * Return the associativity of this processor's TLB. The TLB is divided into
+	 * sets of this many entries, and a virtual page can only be mapped by an
+	 * entry in the set returned by <tt>getTLBSet()</tt>. Entries
+	 * <tt>set * ways</tt> through <tt>set * ways + ways - 1</tt> make up
+	 * each set. By default there is only one set, so the TLB is fully
+	 * associative.
+	 * 
+	 * @return the number of entries in each TLB set.
+	 */
+	public int getTLBWays() {
+		Lib.assertTrue(usingTLB);
+
+		return tlbWays;
+	}
+
+	/**
+	 * Return the TLB set that can map the specified virtual page.
+	 * 
+	 * @param vpn the virtual page number.
+	 * @return the set number.
+	 */
+	public int getTLBSet(int vpn) {
+		Lib.assertTrue(usingTLB);
+
+		return (vpn & 0x7FFFFFFF) % (tlbSize / tlbWays);
+	}
+
+	/**
+	 * Choose the TLB entry to replace in order to map the specified virtual
+	 * page, using the current replacement policy.
+	 * 
+	 * @param vpn the virtual page number.
+	 * @return the number of an entry in the page's set.
+	 */
+	public int chooseTLBEntry(int vpn) {
+		int first = getTLBSet(vpn) * tlbWays;
+
+		int number = tlbPolicy.chooseEntry(vpn, first, tlbWays);
+		Lib.assertTrue(number >= first && number < first + tlbWays);
+
+		return number;
+	}
+
+	/**
+	 * Set the policy used by <tt>chooseTLBEntry()</tt>. The default policy
+	 * picks an invalid entry in the set if there is one, and otherwise
+	 * replaces the entries of each set in turn.
+	 * 
+	 * @param policy the new replacement policy.
+	 */
+	public void setTLBReplacementPolicy(TLBReplacementPolicy policy) {
+		Lib.assertTrue(usingTLB && policy != null);
+
+		tlbPolicy = policy;
+	}
+
 	/**
 	 * Returns the specified TLB entry.
 	 * 
@@ -205,8 +663,8 @@ public final class Processor {
 	 * Fill the specified TLB entry.
 	 * 
 	 * <p>
-	 * The TLB is fully associative, so the location of an entry within the TLB
-	 * does not affect anything.
+	 * A valid entry must be written into the set that can map its virtual
+	 * page. Within the set, the location of an entry does not affect anything.
 	 * 
 	 * @param number the index into the TLB.
 	 * @param entry the new contents of the TLB entry.
@@ -214,8 +672,66 @@ public final class Processor {
 	public void writeTLBEntry(int number, TranslationEntry entry) {
 		Lib.assertTrue(usingTLB);
 		Lib.assertTrue(number >= 0 && number < tlbSize);
+		Lib.assertTrue(!entry.valid
+				|| number / tlbWays == getTLBSet(entry.vpn));
+
+		if (translations[number].valid)
+			unlinkTLBEntry(number);
 
 		translations[number] = new TranslationEntry(entry);
+
+		if (entry.valid)
+			linkTLBEntry(number);
+
+		flushMicroTLB();
+	}
+
+	/**
+	 * Add a valid TLB entry to the chain for its virtual page, keeping the
+	 * chain sorted by entry number so that the lowest numbered of several
+	 * matching entries is found first.
+	 */
+	private void linkTLBEntry(int number) {
+		int chain = translations[number].vpn & (tlbChains.length - 1);
+
+		if (tlbChains[chain] == -1 || tlbChains[chain] > number) {
+			tlbNext[number] = tlbChains[chain];
+			tlbChains[chain] = number;
+			return;
+		}
+
+		int i = tlbChains[chain];
+		while (tlbNext[i] != -1 && tlbNext[i] < number)
+			i = tlbNext[i];
+
+		tlbNext[number] = tlbNext[i];
+		tlbNext[i] = number;
+	}
+
+	/**
+	 * Remove a valid TLB entry from the chain for its virtual page.
+	 */
+	private void unlinkTLBEntry(int number) {
+		int chain = translations[number].vpn & (tlbChains.length - 1);
+
+		if (tlbChains[chain] == number) {
+			tlbChains[chain] = tlbNext[number];
+			return;
+		}
+
+		int i = tlbChains[chain];
+		while (tlbNext[i] != number)
+			i = tlbNext[i];
+
+		tlbNext[i] = tlbNext[number];
+	}
+
+	/**
+	 * Forget every translation remembered by the micro-TLB.
+	 */
+	private void flushMicroTLB() {
+		if (microTLB != null)
+			Arrays.fill(microTLB, null);
 	}
 
 	/**
@@ -278,6 +794,63 @@ public final class Processor {
 		delayedLoad(0, 0, 0);
 	}
 
+	/**
+	 * Tell the profiler about a COFF executable that was just loaded, so that
+	 * it can symbolize addresses in it.
+	 * 
+	 * @param coff the executable.
+	 * @param name the name of the executable file.
+	 */
+	void addExecutable(Coff coff, String name) {
+		if (profiler != null)
+			profiler.addExecutable(coff, name);
+	}
+
+	/**
+	 * Print the user program profile, if profiling is enabled.
+	 */
+	void printProfile() {
+		if (profiler != null)
+			profiler.print();
+	}
+
+	/**
+	 * Write the instruction trace to its file, if tracing is enabled.
+	 */
+	void writeTrace() {
+		if (trace != null)
+			trace.write(privilege, traceFile);
+	}
+
+	/**
+	 * Find the valid translation entry for the specified virtual page, using
+	 * either the page table or the TLB. Has no side effects.
+	 * 
+	 * @param vpn the virtual page number.
+	 * @return the index of the entry in <tt>translations</tt>, or -1 if the
+	 * page is not mapped.
+	 */
+	private int findEntry(int vpn) {
+		// if not using a TLB, then the vpn is an index into the table
+		if (!usingTLB) {
+			if (translations == null || vpn >= translations.length
+					|| translations[vpn] == null || !translations[vpn].valid)
+				return -1;
+
+			return vpn;
+		}
+		// else, look through the TLB entries chained for this vpn
+		else {
+			int chain = vpn & (tlbChains.length - 1);
+			for (int i = tlbChains[chain]; i != -1; i = tlbNext[i]) {
+				if (translations[i].vpn == vpn)
+					return i;
+			}
+
+			return -1;
+		}
+	}
+
 	/**
 	 * Translate a virtual address into a physical address, using either a page
 	 * table or a TLB. Check for alignment, make sure the virtual page is valid,
@@ -292,6 +865,28 @@ public final class Processor {
 	 */
 	private int translate(int vaddr, int size, boolean writing)
 			throws MipsException {
+		// try the translation used the last time this page was accessed
+		if (microTLB != null && (vaddr & (size - 1)) == 0) {
+			int vpn = pageFromAddress(vaddr);
+			int slot = vpn & (microTLBSize - 1);
+			TranslationEntry entry = microTLB[slot];
+
+			// the kernel may have changed the entry since it was cached
+			if (entry != null && microVPN[slot] == vpn && entry.valid
+					&& !(writing && entry.readOnly) && entry.ppn >= 0
+					&& entry.ppn < numPhysPages
+					&& translations[microNumber[slot]] == entry) {
+				if (usingTLB)
+					privilege.stats.tlbEntryHits[microNumber[slot]]++;
+
+				entry.used = true;
+				if (writing)
+					entry.dirty = true;
+
+				return entry.ppn * pageSize + offsetFromAddress(vaddr);
+			}
+		}
+
 		if (Lib.test(dbgProcessor))
 			System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 					+ (writing ? ", write" : ", read..."));
@@ -299,52 +894,44 @@ public final class Processor {
 		// check alignment
 		if ((vaddr & (size - 1)) != 0) {
 			Lib.debug(dbgProcessor, "\t\talignment error");
-			throw new MipsException(exceptionAddressError, vaddr);
+			throw mipsException(exceptionAddressError, vaddr);
 		}
 
 		// calculate virtual page number and offset from the virtual address
 		int vpn = pageFromAddress(vaddr);
 		int offset = offsetFromAddress(vaddr);
 
-		TranslationEntry entry = null;
+		int number = findEntry(vpn);
 
-		// if not using a TLB, then the vpn is an index into the table
-		if (!usingTLB) {
-			if (translations == null || vpn >= translations.length
-					|| translations[vpn] == null || !translations[vpn].valid) {
+		if (number == -1) {
+			// if not using a TLB, then the vpn is an index into the table
+			if (!usingTLB) {
 				privilege.stats.numPageFaults++;
 				Lib.debug(dbgProcessor, "\t\tpage fault");
-				throw new MipsException(exceptionPageFault, vaddr);
-			}
-
-			entry = translations[vpn];
-		}
-		// else, look through all TLB entries for matching vpn
-		else {
-			for (int i = 0; i < tlbSize; i++) {
-				if (translations[i].valid && translations[i].vpn == vpn) {
-					entry = translations[i];
-					break;
-				}
+				throw mipsException(exceptionPageFault, vaddr);
 			}
-			if (entry == null) {
+			// else, no TLB entry had a matching vpn
+			else {
 				privilege.stats.numTLBMisses++;
+				privilege.stats.tlbSetMisses[getTLBSet(vpn)]++;
 				Lib.debug(dbgProcessor, "\t\tTLB miss");
-				throw new MipsException(exceptionTLBMiss, vaddr);
+				throw mipsException(exceptionTLBMiss, vaddr);
 			}
 		}
 
+		TranslationEntry entry = translations[number];
+
 		// check if trying to write a read-only page
 		if (entry.readOnly && writing) {
 			Lib.debug(dbgProcessor, "\t\tread-only exception");
-			throw new MipsException(exceptionReadOnly, vaddr);
+			throw mipsException(exceptionReadOnly, vaddr);
 		}
 
 		// check if physical page number is out of range
 		int ppn = entry.ppn;
 		if (ppn < 0 || ppn >= numPhysPages) {
 			Lib.debug(dbgProcessor, "\t\tbad ppn");
-			throw new MipsException(exceptionBusError, vaddr);
+			throw mipsException(exceptionBusError, vaddr);
 		}
 
 		// set used and dirty bits as appropriate
@@ -352,6 +939,15 @@ public final class Processor {
 		if (writing)
 			entry.dirty = true;
 
+		if (usingTLB)
+			privilege.stats.tlbEntryHits[number]++;
+
+		if (microTLB != null) {
+			microVPN[vpn & (microTLBSize - 1)] = vpn;
+			microNumber[vpn & (microTLBSize - 1)] = number;
+			microTLB[vpn & (microTLBSize - 1)] = entry;
+		}
+
 		int paddr = (ppn * pageSize) + offset;
 
 		if (Lib.test(dbgProcessor))
@@ -402,7 +998,55 @@ public final class Processor {
 
 		Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-		Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size, value);
+		int paddr = translate(vaddr, size, true);
+
+		Lib.bytesFromInt(mainMemory, paddr, size, value);
+
+		// drop any decoded copy of the word we just modified
+		Decoded[] page = decodeCache[paddr / pageSize];
+		if (page != null)
+			page[(paddr % pageSize) / 4] = null;
+
+		// and any cached blocks that might contain it
+		if (usingBlockEngine && blockCache[paddr / pageSize] != null) {
+			blockCache[paddr / pageSize] = null;
+			blockBroken = true;
+		}
+	}
+
+	/**
+	 * Return the decoded form of the instruction word stored at the specified
+	 * physical address, decoding it and caching the result if necessary.
+	 * 
+	 * <p>
+	 * Each cached entry remembers the word it was decoded from, so an entry is
+	 * only reused while memory still holds that word. This keeps the cache
+	 * correct when the kernel reloads a frame through <tt>getMemory()</tt>
+	 * (for example when loading a COFF page or swapping a page in), which the
+	 * processor never sees.
+	 * 
+	 * @param paddr the physical address of the instruction.
+	 * @param value the instruction word currently stored at <i>paddr</i>.
+	 * @return the decoded instruction.
+	 */
+	private Decoded decodeAt(int paddr, int value) {
+		int ppn = paddr / pageSize;
+
+		Decoded[] page = decodeCache[ppn];
+		if (page == null) {
+			page = new Decoded[pageSize / 4];
+			decodeCache[ppn] = page;
+		}
+
+		int index = (paddr % pageSize) / 4;
+
+		Decoded info = page[index];
+		if (info == null || info.value != value) {
+			info = new Decoded(value);
+			page[index] = info;
+		}
+
+		return info;
 	}
 
 	/**
@@ -552,6 +1196,22 @@ public final class Processor {
 	/** Number of TLB entries. */
 	private int tlbSize = 4;
 
+	/** Number of TLB entries in each set. */
+	private int tlbWays;
+
+	/**
+	 * The first valid TLB entry whose virtual page number hashes to each
+	 * chain, or -1. The rest of each chain is linked through
+	 * <tt>tlbNext</tt>.
+	 */
+	private int[] tlbChains;
+
+	/** The next valid TLB entry in the same chain, or -1. */
+	private int[] tlbNext;
+
+	/** Chooses TLB entries to replace. */
+	private TLBReplacementPolicy tlbPolicy;
+
 	/**
 	 * Either an associative or direct-mapped set of translation entries,
 	 * depending on whether there is a TLB.
@@ -567,17 +1227,98 @@ public final class Processor {
 	/** Number of physical pages in memory. */
 	private int numPhysPages;
 
-	/** Main memory for user programs. */
-	private byte[] mainMemory;
+	/**
+	 * A small direct-mapped cache of recent translations, indexed by the low
+	 * bits of the virtual page number. The entries are the page table or TLB
+	 * entries themselves, so their bits are re-checked on every hit. Flushed
+	 * whenever the page table pointer or a TLB entry is replaced.
+	 */
+	private TranslationEntry[] microTLB;
 
-	/** The kernel exception handler, called on every user exception. */
-	private Runnable exceptionHandler = null;
+	/** The virtual page number cached in each micro-TLB slot. */
+	private int[] microVPN;
 
-	private static final char dbgProcessor = 'p';
+	/** The index in <tt>translations</tt> of each cached entry. */
+	private int[] microNumber;
 
-	private static final char dbgDisassemble = 'm';
+	/** Number of micro-TLB slots, a power of two. */
+	private static final int microTLBSize = 16;
 
-	private static final char dbgFullDisassemble = 'M';
+	/** Main memory for user programs. */
+	private byte[] mainMemory;
+
+	/**
+	 * Instructions that have already been decoded, indexed by physical page
+	 * number and then by word within the page. The per-page arrays are
+	 * allocated the first time an instruction on that page is executed.
+	 */
+	private Decoded[][] decodeCache;
+
+	/**
+	 * <tt>true</tt> if instructions are run by their <tt>Handler</tt> rather
+	 * than by <tt>Instruction.execute()</tt>.
+	 */
+	private boolean usingHandlers;
+
+	/** The snapshot to write, or <tt>null</tt> if none. */
+	private String saveSnapshot;
+
+	/** The simulated time after which to write the snapshot. */
+	private long saveSnapshotAt;
+
+	/** The snapshot to resume from when a program starts, or <tt>null</tt>. */
+	private String loadSnapshot;
+
+	/** Identifies a snapshot file, and its format version. */
+	private static final int snapshotMagic = 0x4E534E01;
+
+	/** The length of the snapshot header, in bytes. */
+	private static final int snapshotHeaderLength = 20;
+
+	/** The user program profiler, or <tt>null</tt> if not profiling. */
+	private Profiler profiler = null;
+
+	/** The last instructions executed, or <tt>null</tt> if not tracing. */
+	private InstructionTrace trace = null;
+
+	/** The name of the file the instruction trace is written to. */
+	private String traceFile;
+
+	/** <tt>true</tt> if hot basic blocks are run from the block cache. */
+	private boolean usingBlockEngine;
+
+	/**
+	 * Basic blocks, indexed by the physical page number and word offset of
+	 * their first instruction. Only allocated when using the block cache.
+	 */
+	private Block[][] blockCache;
+
+	/**
+	 * Set by <tt>writeMem()</tt> when a store invalidates the cached blocks
+	 * of a page, so that a running block stops after the store.
+	 */
+	private boolean blockBroken;
+
+	/**
+	 * Maximum number of instructions interpreted between two calls to the
+	 * interrupt controller.
+	 */
+	private static final int maxBatchLength = 1000;
+
+	/** Number of times a block is reached before it is cached. */
+	private static final int blockThreshold = 16;
+
+	/** Maximum number of instructions in a cached block. */
+	private static final int maxBlockLength = 64;
+
+	/** The kernel exception handler, called on every user exception. */
+	private Runnable exceptionHandler = null;
+
+	private static final char dbgProcessor = 'p';
+
+	private static final char dbgDisassemble = 'm';
+
+	private static final char dbgFullDisassemble = 'M';
 
 	private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 		public void flushPipe() {
@@ -585,21 +1326,53 @@ public final class Processor {
 		}
 	}
 
-	private class MipsException extends Exception {
-		public MipsException(int cause) {
-			Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
+	/**
+	 * Prepare the processor's exception object to report the specified
+	 * exception. The same object is thrown for every exception, so delivering
+	 * one does not allocate anything.
+	 * 
+	 * @param cause the exception that occurred.
+	 * @return the exception object, ready to be thrown.
+	 */
+	private MipsException mipsException(int cause) {
+		Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
 
-			this.cause = cause;
-		}
+		mipsException.cause = cause;
+		mipsException.hasBadVAddr = false;
+		return mipsException;
+	}
 
-		public MipsException(int cause, int badVAddr) {
-			this(cause);
+	/**
+	 * Prepare the processor's exception object to report the specified
+	 * exception, along with the virtual address that caused it.
+	 * 
+	 * @param cause the exception that occurred.
+	 * @param badVAddr the faulting virtual address.
+	 * @return the exception object, ready to be thrown.
+	 */
+	private MipsException mipsException(int cause, int badVAddr) {
+		mipsException(cause);
 
-			hasBadVAddr = true;
-			this.badVAddr = badVAddr;
+		mipsException.hasBadVAddr = true;
+		mipsException.badVAddr = badVAddr;
+		return mipsException;
+	}
+
+	/**
+	 * The only <tt>MipsException</tt>. It is created without a stack trace,
+	 * since it never escapes the interpreter.
+	 */
+	private final MipsException mipsException = new MipsException();
+
+	private class MipsException extends Exception {
+		private MipsException() {
+			super(null, null, false, false);
 		}
 
 		public void handle() {
+			// the handler may switch to a thread that raises another exception
+			int cause = this.cause;
+
 			writeRegister(regCause, cause);
 
 			if (hasBadVAddr)
@@ -628,78 +1401,109 @@ public final class Processor {
 		public void run() throws MipsException {
 			// hopefully this looks familiar to 152 students?
 			fetch();
-			decode();
-			execute();
-			writeBack();
+			run(decodeAt(paddr, value));
+		}
+
+		/**
+		 * Execute an instruction that was already fetched and decoded, at the
+		 * current PC. Used directly by the block cache, which does the fetch
+		 * translation once for a whole block.
+		 */
+		public void run(Decoded info) throws MipsException {
+			if (profiler != null)
+				profile(info);
+
+			if (trace != null)
+				trace.start(registers[regPC], info.value,
+						accessesMemory(info) ? registers[info.rs] + info.imm : 0);
+
+			if (usingHandlers && info.handler != null) {
+				info.handler.run(Processor.this, info);
+			}
+			else {
+				decode(info);
+				execute();
+				writeBack();
+			}
+
+			if (trace != null)
+				traceResult(info);
 		}
 
 		private boolean test(int flag) {
 			return Lib.test(flag, flags);
 		}
 
+		private void profile(Decoded info) {
+			int pc = registers[regPC];
+
+			profiler.instruction(pc);
+
+			// calls are the linking jumps; bltzal and friends are not
+			if (info.operation == Mips.JUMP && Lib.test(Mips.LINK, info.flags)) {
+				if (info.format == Mips.JFMT)
+					profiler.call(pc, (registers[regNextPC] & 0xF0000000)
+							| (info.target << 2));
+				else
+					profiler.call(pc, registers[info.rs]);
+			}
+		}
+
+		private void traceResult(Decoded info) {
+			if (Lib.test(Mips.DELAYEDLOAD, info.flags) && info.dstReg != 0)
+				trace.finish(info.dstReg, true, loadValue);
+			else if (Lib.test(Mips.DST, info.flags) && info.dstReg != 0)
+				trace.finish(info.dstReg, false, registers[info.dstReg]);
+			else
+				trace.finish(0, false, 0);
+		}
+
 		private void fetch() throws MipsException {
+			if (usingHandlers) {
+				paddr = translate(registers[regPC], 4, false);
+				value = Lib.bytesToInt(mainMemory, paddr);
+				return;
+			}
+
 			if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor))
 					|| Lib.test(dbgFullDisassemble))
 				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 						+ "\t");
 
-			value = readMem(registers[regPC], 4);
+			if (Lib.test(dbgProcessor))
+				System.out.println("\tfetch vaddr=0x"
+						+ Lib.toHexString(registers[regPC]));
+
+			paddr = translate(registers[regPC], 4, false);
+			value = Lib.bytesToInt(mainMemory, paddr);
 		}
 
-		private void decode() {
-			op = Lib.extract(value, 26, 6);
-			rs = Lib.extract(value, 21, 5);
-			rt = Lib.extract(value, 16, 5);
-			rd = Lib.extract(value, 11, 5);
-			sh = Lib.extract(value, 6, 5);
-			func = Lib.extract(value, 0, 6);
-			target = Lib.extract(value, 0, 26);
-			imm = Lib.extend(value, 0, 16);
+		private void decode(Decoded info) {
+			decoded = info;
 
-			Mips info;
-			switch (op) {
-			case 0:
-				info = Mips.specialtable[func];
-				break;
-			case 1:
-				info = Mips.regimmtable[rt];
-				break;
-			default:
-				info = Mips.optable[op];
-				break;
-			}
+			op = info.op;
+			rs = info.rs;
+			rt = info.rt;
+			rd = info.rd;
+			sh = info.sh;
+			func = info.func;
+			target = info.target;
+			imm = info.imm;
 
 			operation = info.operation;
 			name = info.name;
 			format = info.format;
 			flags = info.flags;
 
+			size = info.size;
+			dstReg = info.dstReg;
+
 			mask = 0xFFFFFFFF;
 			branch = true;
 
-			// get memory access size
-			if (test(Mips.SIZEB))
-				size = 1;
-			else if (test(Mips.SIZEH))
-				size = 2;
-			else if (test(Mips.SIZEW))
-				size = 4;
-			else
-				size = 0;
-
 			// get nextPC
 			nextPC = registers[regNextPC] + 4;
 
-			// get dstReg
-			if (test(Mips.DSTRA))
-				dstReg = regRA;
-			else if (format == Mips.IFMT)
-				dstReg = rt;
-			else if (format == Mips.RFMT)
-				dstReg = rd;
-			else
-				dstReg = -1;
-
 			// get jtarget
 			if (format == Mips.RFMT)
 				jtarget = registers[rs];
@@ -710,11 +1514,6 @@ public final class Processor {
 			else
 				jtarget = -1;
 
-			// get imm
-			if (test(Mips.UNSIGNED)) {
-				imm &= 0xFFFF;
-			}
-
 			// get addr
 			addr = registers[rs] + imm;
 
@@ -745,117 +1544,13 @@ public final class Processor {
 				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 						+ "\t");
 
-			if (operation == Mips.INVALID) {
-				System.out.print("invalid: op=" + Lib.toHexString(op, 2)
-						+ " rs=" + Lib.toHexString(rs, 2) + " rt="
-						+ Lib.toHexString(rt, 2) + " rd="
-						+ Lib.toHexString(rd, 2) + " sh="
-						+ Lib.toHexString(sh, 2) + " func="
-						+ Lib.toHexString(func, 2) + "\n");
-				return;
-			}
-
-			int spaceIndex = name.indexOf(' ');
-			Lib.assertTrue(spaceIndex != -1
-					&& spaceIndex == name.lastIndexOf(' '));
+			boolean full = Lib.test(dbgFullDisassemble);
 
-			String instname = name.substring(0, spaceIndex);
-			char[] args = name.substring(spaceIndex + 1).toCharArray();
+			System.out.print(disassemble(decoded, jtarget, full ? registers
+					: null));
 
-			System.out.print(instname + "\t");
-
-			int minCharsPrinted = 0, maxCharsPrinted = 0;
-
-			for (int i = 0; i < args.length; i++) {
-				switch (args[i]) {
-				case Mips.RS:
-					System.out.print("$" + rs);
-					minCharsPrinted += 2;
-					maxCharsPrinted += 3;
-
-					if (Lib.test(dbgFullDisassemble)) {
-						System.out
-								.print("#0x" + Lib.toHexString(registers[rs]));
-						minCharsPrinted += 11;
-						maxCharsPrinted += 11;
-					}
-					break;
-				case Mips.RT:
-					System.out.print("$" + rt);
-					minCharsPrinted += 2;
-					maxCharsPrinted += 3;
-
-					if (Lib.test(dbgFullDisassemble)
-							&& (i != 0 || !test(Mips.DST))
-							&& !test(Mips.DELAYEDLOAD)) {
-						System.out
-								.print("#0x" + Lib.toHexString(registers[rt]));
-						minCharsPrinted += 11;
-						maxCharsPrinted += 11;
-					}
-					break;
-				case Mips.RETURNADDRESS:
-					if (rd == 31)
-						continue;
-				case Mips.RD:
-					System.out.print("$" + rd);
-					minCharsPrinted += 2;
-					maxCharsPrinted += 3;
-					break;
-				case Mips.IMM:
-					System.out.print(imm);
-					minCharsPrinted += 1;
-					maxCharsPrinted += 6;
-					break;
-				case Mips.SHIFTAMOUNT:
-					System.out.print(sh);
-					minCharsPrinted += 1;
-					maxCharsPrinted += 2;
-					break;
-				case Mips.ADDR:
-					System.out.print(imm + "($" + rs);
-					minCharsPrinted += 4;
-					maxCharsPrinted += 5;
-
-					if (Lib.test(dbgFullDisassemble)) {
-						System.out
-								.print("#0x" + Lib.toHexString(registers[rs]));
-						minCharsPrinted += 11;
-						maxCharsPrinted += 11;
-					}
-
-					System.out.print(")");
-					break;
-				case Mips.TARGET:
-					System.out.print("0x" + Lib.toHexString(jtarget));
-					minCharsPrinted += 10;
-					maxCharsPrinted += 10;
-					break;
-				default:
-					Lib.assertTrue(false);
-				}
-				if (i + 1 < args.length) {
-					System.out.print(", ");
-					minCharsPrinted += 2;
-					maxCharsPrinted += 2;
-				}
-				else {
-					// most separation possible is tsi, 5+1+1=7,
-					// thankfully less than 8 (makes this possible)
-					Lib.assertTrue(maxCharsPrinted - minCharsPrinted < 8);
-					// longest string is stj, which is 40-42 chars w/ -d M;
-					// go for 48
-					while ((minCharsPrinted % 8) != 0) {
-						System.out.print(" ");
-						minCharsPrinted++;
-						maxCharsPrinted++;
-					}
-					while (minCharsPrinted < 48) {
-						System.out.print("\t");
-						minCharsPrinted += 8;
-					}
-				}
-			}
+			if (operation == Mips.INVALID)
+				return;
 
 			if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor)
 					&& !Lib.test(dbgFullDisassemble))
@@ -886,7 +1581,7 @@ public final class Processor {
 						throw new ArithmeticException();
 				}
 				catch (ArithmeticException e) {
-					throw new MipsException(exceptionOverflow);
+					throw mipsException(exceptionOverflow);
 				}
 				break;
 
@@ -956,7 +1651,7 @@ public final class Processor {
 				break;
 
 			case Mips.SYSCALL:
-				throw new MipsException(exceptionSyscall);
+				throw mipsException(exceptionSyscall);
 
 			case Mips.LOAD:
 				value = readMem(addr, size);
@@ -1027,7 +1722,7 @@ public final class Processor {
 				System.err.println("Warning: encountered unimplemented inst");
 
 			case Mips.INVALID:
-				throw new MipsException(exceptionIllegalInstruction);
+				throw mipsException(exceptionIllegalInstruction);
 
 			default:
 				Lib.assertNotReached();
@@ -1037,7 +1732,7 @@ public final class Processor {
 		private void writeBack() throws MipsException {
 			// if instruction is signed, but carry bit !+ sign bit, throw
 			if (test(Mips.OVERFLOW) && Lib.test(dst, 31) != Lib.test(dst, 32))
-				throw new MipsException(exceptionOverflow);
+				throw mipsException(exceptionOverflow);
 
 			if (test(Mips.DELAYEDLOAD))
 				delayedLoad(dstReg, (int) dst, mask);
@@ -1070,7 +1765,9 @@ public final class Processor {
 		}
 
 		// state used to execute a single instruction
-		int value, op, rs, rt, rd, sh, func, target, imm;
+		Decoded decoded;
+
+		int paddr, value, op, rs, rt, rd, sh, func, target, imm;
 
 		int operation, format, flags;
 
@@ -1087,6 +1784,808 @@ public final class Processor {
 		boolean branch;
 	}
 
+	/**
+	 * The parts of a decoded instruction that depend only on the instruction
+	 * word, and can therefore be reused every time the same word is executed.
+	 */
+	private static class Decoded {
+		Decoded(int value) {
+			this.value = value;
+
+			op = Lib.extract(value, 26, 6);
+			rs = Lib.extract(value, 21, 5);
+			rt = Lib.extract(value, 16, 5);
+			rd = Lib.extract(value, 11, 5);
+			sh = Lib.extract(value, 6, 5);
+			func = Lib.extract(value, 0, 6);
+			target = Lib.extract(value, 0, 26);
+
+			Mips info;
+			switch (op) {
+			case 0:
+				info = Mips.specialtable[func];
+				break;
+			case 1:
+				info = Mips.regimmtable[rt];
+				break;
+			default:
+				info = Mips.optable[op];
+				break;
+			}
+
+			operation = info.operation;
+			name = info.name;
+			format = info.format;
+			flags = info.flags;
+			handler = info.handler;
+
+			// get memory access size
+			if (Lib.test(Mips.SIZEB, flags))
+				size = 1;
+			else if (Lib.test(Mips.SIZEH, flags))
+				size = 2;
+			else if (Lib.test(Mips.SIZEW, flags))
+				size = 4;
+			else
+				size = 0;
+
+			// get dstReg
+			if (Lib.test(Mips.DSTRA, flags))
+				dstReg = regRA;
+			else if (format == Mips.IFMT)
+				dstReg = rt;
+			else if (format == Mips.RFMT)
+				dstReg = rd;
+			else
+				dstReg = -1;
+
+			// get imm
+			if (Lib.test(Mips.UNSIGNED, flags))
+				imm = Lib.extract(value, 0, 16);
+			else
+				imm = Lib.extend(value, 0, 16);
+		}
+
+		/** The instruction word this entry was decoded from. */
+		final int value;
+
+		final int op, rs, rt, rd, sh, func, target, imm;
+
+		final int operation, format, flags;
+
+		final String name;
+
+		final int size, dstReg;
+
+		/** Executes this instruction, or <tt>null</tt> to interpret it. */
+		final Handler handler;
+	}
+
+	/**
+	 * Complete a non-branching instruction: finish any delayed load in
+	 * progress, write the result, and advance to the next instruction.
+	 */
+	private void retire(int dstReg, int result) {
+		if (loadTarget != 0)
+			finishLoad();
+
+		if (dstReg != 0)
+			registers[dstReg] = result;
+
+		registers[regPC] = registers[regNextPC];
+		registers[regNextPC] += 4;
+	}
+
+	/**
+	 * Complete an instruction that has no destination register.
+	 */
+	private void retire() {
+		retire(0, 0);
+	}
+
+	/**
+	 * Complete a branch or jump, whose target takes effect after the delay
+	 * slot.
+	 */
+	private void retireBranch(boolean taken, int jtarget) {
+		if (loadTarget != 0)
+			finishLoad();
+
+		int nextPC = registers[regNextPC];
+		registers[regPC] = nextPC;
+		registers[regNextPC] = taken ? jtarget : nextPC + 4;
+	}
+
+	/**
+	 * Complete a jump-and-link, writing the return address to the specified
+	 * register.
+	 */
+	private void retireLink(int dstReg, int jtarget) {
+		if (loadTarget != 0)
+			finishLoad();
+
+		int nextPC = registers[regNextPC];
+		if (dstReg != 0)
+			registers[dstReg] = nextPC + 4;
+
+		registers[regPC] = nextPC;
+		registers[regNextPC] = jtarget;
+	}
+
+	/**
+	 * Complete a load, which is delayed by one instruction. The load before
+	 * it, if any, takes effect first.
+	 */
+	private void retireLoad(int dstReg, int result) {
+		if (loadTarget != 0)
+			finishLoad();
+
+		loadTarget = dstReg;
+		loadValue = result;
+		loadMask = 0xFFFFFFFF;
+
+		registers[regPC] = registers[regNextPC];
+		registers[regNextPC] += 4;
+	}
+
+	/**
+	 * Executes one kind of decoded instruction from start to finish, with the
+	 * same results as <tt>Instruction.execute()</tt> and
+	 * <tt>writeBack()</tt>. Each <tt>Mips</tt> table entry is bound to a
+	 * handler when the table is built, so the interpreter only has to make one
+	 * call per instruction, and each handler only contains the code its
+	 * instructions need. Instructions without a handler are interpreted.
+	 */
+	private static abstract class Handler {
+		abstract void run(Processor p, Decoded d) throws MipsException;
+
+		/**
+		 * Find the handler for instructions with the specified attributes.
+		 * 
+		 * @return the handler, or <tt>null</tt> if the instruction must be
+		 * interpreted.
+		 */
+		static Handler forOperation(int operation, int format, int flags) {
+			boolean imm = Lib.test(Mips.SRC2IMM, flags);
+			boolean unsigned = Lib.test(Mips.UNSIGNED, flags);
+			boolean overflow = Lib.test(Mips.OVERFLOW, flags);
+			boolean shamt = Lib.test(Mips.SRC1SH, flags);
+			boolean link = Lib.test(Mips.LINK, flags);
+
+			switch (operation) {
+			case Mips.ADD:
+				if (imm)
+					return overflow ? addi : addiu;
+				else
+					return overflow ? add : addu;
+			case Mips.SUB:
+				return overflow ? sub : subu;
+			case Mips.AND:
+				return imm ? andi : and;
+			case Mips.OR:
+				return imm ? ori : or;
+			case Mips.XOR:
+				return imm ? xori : xor;
+			case Mips.NOR:
+				return nor;
+			case Mips.SLT:
+				if (imm)
+					return unsigned ? sltiu : slti;
+				else
+					return unsigned ? sltu : slt;
+			case Mips.LUI:
+				return lui;
+			case Mips.SLL:
+				return shamt ? sll : sllv;
+			case Mips.SRA:
+				return shamt ? sra : srav;
+			case Mips.SRL:
+				return shamt ? srl : srlv;
+			case Mips.MULT:
+				return unsigned ? multu : mult;
+			case Mips.MFLO:
+				return mflo;
+			case Mips.MFHI:
+				return mfhi;
+			case Mips.BEQ:
+				return link ? null : beq;
+			case Mips.BNE:
+				return link ? null : bne;
+			case Mips.BLEZ:
+				return link ? null : blez;
+			case Mips.BGTZ:
+				return link ? null : bgtz;
+			case Mips.BLTZ:
+				return link ? null : bltz;
+			case Mips.BGEZ:
+				return link ? null : bgez;
+			case Mips.JUMP:
+				if (format == Mips.JFMT)
+					return link ? jal : j;
+				else
+					return link ? jalr : jr;
+			case Mips.LOAD:
+				if (Lib.test(Mips.SIZEW, flags))
+					return lw;
+				else
+					return unsigned ? loadUnsigned : loadSigned;
+			case Mips.STORE:
+				return store;
+			default:
+				return null;
+			}
+		}
+
+		private static final Handler addu = new Handler() {
+			void run(Processor p, Decoded d) {
+				int[] r = p.registers;
+				p.retire(d.dstReg, r[d.rs] + r[d.rt]);
+			}
+		};
+
+		private static final Handler addiu = new Handler() {
+			void run(Processor p, Decoded d) {
+				p.retire(d.dstReg, p.registers[d.rs] + d.imm);
+			}
+		};
+
+		private static final Handler add = new Handler() {
+			void run(Processor p, Decoded d) throws MipsException {
+				int[] r = p.registers;
+				long dst = (long) r[d.rs] + r[d.rt];
+				if (dst != (int) dst)
+					throw p.mipsException(exceptionOverflow);
+				p.retire(d.dstReg, (int) dst);
+			}
+		};
+
+		private static final Handler addi = new Handler() {
+			void run(Processor p, Decoded d) throws MipsException {
+				long dst = (long) p.registers[d.rs] + d.imm;
+				if (dst != (int) dst)
+					throw p.mipsException(exceptionOverflow);
+				p.retire(d.dstReg, (int) dst);
+			}
+		};
+
+		private static final Handler subu = new Handler() {
+			void run(Processor p, Decoded d) {
+				int[] r = p.registers;
+				p.retire(d.dstReg, r[d.rs] - r[d.rt]);
+			}
+		};
+
+		private static final Handler sub = new Handler() {
+			void run(Processor p, Decoded d) throws MipsException {
+				int[] r = p.registers;
+				long dst = (long) r[d.rs] - r[d.rt];
+				if (dst != (int) dst)
+					throw p.mipsException(exceptionOverflow);
+				p.retire(d.dstReg, (int) dst);
+			}
+		};
+
+		private static final Handler and = new Handler() {
+			void run(Processor p, Decoded d) {
+				int[] r = p.registers;
+				p.retire(d.dstReg, r[d.rs] & r[d.rt]);
+			}
+		};
+
+		private static final Handler andi = new Handler() {
+			void run(Processor p, Decoded d) {
+				p.retire(d.dstReg, p.registers[d.rs] & d.imm);
+			}
+		};
+
+		private static final Handler or = new Handler() {
+			void run(Processor p, Decoded d) {
+				int[] r = p.registers;
+				p.retire(d.dstReg, r[d.rs] | r[d.rt]);
+			}
+		};
+
+		private static final Handler ori = new Handler() {
+			void run(Processor p, Decoded d) {
+				p.retire(d.dstReg, p.registers[d.rs] | d.imm);
+			}
+		};
+
+		private static final Handler xor = new Handler() {
+			void run(Processor p, Decoded d) {
+				int[] r = p.registers;
+				p.retire(d.dstReg, r[d.rs] ^ r[d.rt]);
+			}
+		};
+
+		private static final Handler xori = new Handler() {
+			void run(Processor p, Decoded d) {
+				p.retire(d.dstReg, p.registers[d.rs] ^ d.imm);
+			}
+		};
+
+		private static final Handler nor = new Handler() {
+			void run(Processor p, Decoded d) {
+				int[] r = p.registers;
+				p.retire(d.dstReg, ~(r[d.rs] | r[d.rt]));
+			}
+		};
+
+		private static final Handler slt = new Handler() {
+			void run(Processor p, Decoded d) {
+				int[] r = p.registers;
+				p.retire(d.dstReg, (r[d.rs] < r[d.rt]) ? 1 : 0);
+			}
+		};
+
+		private static final Handler sltu = new Handler() {
+			void run(Processor p, Decoded d) {
+				int[] r = p.registers;
+				p.retire(d.dstReg,
+						(Integer.compareUnsigned(r[d.rs], r[d.rt]) < 0) ? 1 : 0);
+			}
+		};
+
+		private static final Handler slti = new Handler() {
+			void run(Processor p, Decoded d) {
+				p.retire(d.dstReg, (p.registers[d.rs] < d.imm) ? 1 : 0);
+			}
+		};
+
+		// the immediate is zero-extended, like the other UNSIGNED ones
+		private static final Handler sltiu = new Handler() {
+			void run(Processor p, Decoded d) {
+				long src1 = p.registers[d.rs] & 0xFFFFFFFFL;
+				p.retire(d.dstReg, (src1 < d.imm) ? 1 : 0);
+			}
+		};
+
+		private static final Handler lui = new Handler() {
+			void run(Processor p, Decoded d) {
+				p.retire(d.dstReg, d.imm << 16);
+			}
+		};
+
+		private static final Handler sll = new Handler() {
+			void run(Processor p, Decoded d) {
+				p.retire(d.dstReg, p.registers[d.rt] << d.sh);
+			}
+		};
+
+		private static final Handler sllv = new Handler() {
+			void run(Processor p, Decoded d) {
+				int[] r = p.registers;
+				p.retire(d.dstReg, r[d.rt] << (r[d.rs] & 0x1F));
+			}
+		};
+
+		private static final Handler sra = new Handler() {
+			void run(Processor p, Decoded d) {
+				p.retire(d.dstReg, p.registers[d.rt] >> d.sh);
+			}
+		};
+
+		private static final Handler srav = new Handler() {
+			void run(Processor p, Decoded d) {
+				int[] r = p.registers;
+				p.retire(d.dstReg, r[d.rt] >> (r[d.rs] & 0x1F));
+			}
+		};
+
+		// shifts the sign-extended source, exactly as execute() does
+		private static final Handler srl = new Handler() {
+			void run(Processor p, Decoded d) {
+				long src2 = p.registers[d.rt];
+				p.retire(d.dstReg, (int) (src2 >>> d.sh));
+			}
+		};
+
+		private static final Handler srlv = new Handler() {
+			void run(Processor p, Decoded d) {
+				int[] r = p.registers;
+				long src2 = r[d.rt];
+				p.retire(d.dstReg, (int) (src2 >>> (r[d.rs] & 0x1F)));
+			}
+		};
+
+		private static final Handler mult = new Handler() {
+			void run(Processor p, Decoded d) {
+				int[] r = p.registers;
+				long dst = (long) r[d.rs] * r[d.rt];
+				r[regLo] = (int) dst;
+				r[regHi] = (int) (dst >>> 32);
+				p.retire();
+			}
+		};
+
+		private static final Handler multu = new Handler() {
+			void run(Processor p, Decoded d) {
+				int[] r = p.registers;
+				long dst = (r[d.rs] & 0xFFFFFFFFL) * (r[d.rt] & 0xFFFFFFFFL);
+				r[regLo] = (int) dst;
+				r[regHi] = (int) (dst >>> 32);
+				p.retire();
+			}
+		};
+
+		private static final Handler mflo = new Handler() {
+			void run(Processor p, Decoded d) {
+				p.retire(d.dstReg, p.registers[regLo]);
+			}
+		};
+
+		private static final Handler mfhi = new Handler() {
+			void run(Processor p, Decoded d) {
+				p.retire(d.dstReg, p.registers[regHi]);
+			}
+		};
+
+		private static final Handler beq = new Handler() {
+			void run(Processor p, Decoded d) {
+				int[] r = p.registers;
+				p.retireBranch(r[d.rs] == r[d.rt], r[regNextPC] + (d.imm << 2));
+			}
+		};
+
+		private static final Handler bne = new Handler() {
+			void run(Processor p, Decoded d) {
+				int[] r = p.registers;
+				p.retireBranch(r[d.rs] != r[d.rt], r[regNextPC] + (d.imm << 2));
+			}
+		};
+
+		private static final Handler blez = new Handler() {
+			void run(Processor p, Decoded d) {
+				int[] r = p.registers;
+				p.retireBranch(r[d.rs] <= 0, r[regNextPC] + (d.imm << 2));
+			}
+		};
+
+		private static final Handler bgtz = new Handler() {
+			void run(Processor p, Decoded d) {
+				int[] r = p.registers;
+				p.retireBranch(r[d.rs] > 0, r[regNextPC] + (d.imm << 2));
+			}
+		};
+
+		private static final Handler bltz = new Handler() {
+			void run(Processor p, Decoded d) {
+				int[] r = p.registers;
+				p.retireBranch(r[d.rs] < 0, r[regNextPC] + (d.imm << 2));
+			}
+		};
+
+		private static final Handler bgez = new Handler() {
+			void run(Processor p, Decoded d) {
+				int[] r = p.registers;
+				p.retireBranch(r[d.rs] >= 0, r[regNextPC] + (d.imm << 2));
+			}
+		};
+
+		private static final Handler j = new Handler() {
+			void run(Processor p, Decoded d) {
+				int[] r = p.registers;
+				p.retireBranch(true, (r[regNextPC] & 0xF0000000) | (d.target << 2));
+			}
+		};
+
+		private static final Handler jal = new Handler() {
+			void run(Processor p, Decoded d) {
+				int[] r = p.registers;
+				p.retireLink(d.dstReg, (r[regNextPC] & 0xF0000000)
+						| (d.target << 2));
+			}
+		};
+
+		private static final Handler jr = new Handler() {
+			void run(Processor p, Decoded d) {
+				p.retireBranch(true, p.registers[d.rs]);
+			}
+		};
+
+		private static final Handler jalr = new Handler() {
+			void run(Processor p, Decoded d) {
+				p.retireLink(d.dstReg, p.registers[d.rs]);
+			}
+		};
+
+		private static final Handler lw = new Handler() {
+			void run(Processor p, Decoded d) throws MipsException {
+				int value = p.readMem(p.registers[d.rs] + d.imm, 4);
+				p.retireLoad(d.dstReg, value);
+			}
+		};
+
+		private static final Handler loadSigned = new Handler() {
+			void run(Processor p, Decoded d) throws MipsException {
+				int value = p.readMem(p.registers[d.rs] + d.imm, d.size);
+				p.retireLoad(d.dstReg, Lib.extend(value, 0, d.size * 8));
+			}
+		};
+
+		private static final Handler loadUnsigned = new Handler() {
+			void run(Processor p, Decoded d) throws MipsException {
+				int value = p.readMem(p.registers[d.rs] + d.imm, d.size);
+				p.retireLoad(d.dstReg, value);
+			}
+		};
+
+		private static final Handler store = new Handler() {
+			void run(Processor p, Decoded d) throws MipsException {
+				int[] r = p.registers;
+				p.writeMem(r[d.rs] + d.imm, d.size, r[d.rt]);
+				p.retire();
+			}
+		};
+	}
+
+	/**
+	 * Disassemble an instruction word, as the <tt>m</tt> debugging flag
+	 * would print it if it were executed at the specified address.
+	 * 
+	 * @param pc the address of the instruction.
+	 * @param value the instruction word.
+	 * @return the disassembled instruction.
+	 */
+	static String disassemble(int pc, int value) {
+		Decoded info = new Decoded(value);
+
+		int jtarget;
+		if (info.format == Mips.IFMT)
+			jtarget = pc + 4 + (info.imm << 2);
+		else if (info.format == Mips.JFMT)
+			jtarget = ((pc + 4) & 0xF0000000) | (info.target << 2);
+		else
+			jtarget = -1;
+
+		return disassemble(info, jtarget, null);
+	}
+
+	/**
+	 * Test whether an instruction word is a load or store.
+	 * 
+	 * @param value the instruction word.
+	 * @return <tt>true</tt> if the instruction accesses memory.
+	 */
+	static boolean accessesMemory(int value) {
+		return accessesMemory(new Decoded(value));
+	}
+
+	private static boolean accessesMemory(Decoded info) {
+		switch (info.operation) {
+		case Mips.LOAD:
+		case Mips.LWL:
+		case Mips.LWR:
+		case Mips.STORE:
+		case Mips.SWL:
+		case Mips.SWR:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Disassemble an instruction, in the format used by the <tt>m</tt> and
+	 * <tt>M</tt> debugging flags.
+	 * 
+	 * @param info the decoded instruction.
+	 * @param jtarget the branch or jump target, if the instruction has one.
+	 * @param registers the register values to show alongside register
+	 * operands, as <tt>M</tt> does, or <tt>null</tt> to show none.
+	 * @return the disassembled instruction.
+	 */
+	private static String disassemble(Decoded info, int jtarget,
+			int[] registers) {
+		StringBuffer buffer = new StringBuffer();
+
+		if (info.operation == Mips.INVALID) {
+			buffer.append("invalid: op=" + Lib.toHexString(info.op, 2)
+					+ " rs=" + Lib.toHexString(info.rs, 2) + " rt="
+					+ Lib.toHexString(info.rt, 2) + " rd="
+					+ Lib.toHexString(info.rd, 2) + " sh="
+					+ Lib.toHexString(info.sh, 2) + " func="
+					+ Lib.toHexString(info.func, 2) + "\n");
+			return buffer.toString();
+		}
+
+		int spaceIndex = info.name.indexOf(' ');
+		Lib.assertTrue(spaceIndex != -1
+				&& spaceIndex == info.name.lastIndexOf(' '));
+
+		String instname = info.name.substring(0, spaceIndex);
+		char[] args = info.name.substring(spaceIndex + 1).toCharArray();
+
+		buffer.append(instname + "\t");
+
+		int minCharsPrinted = 0, maxCharsPrinted = 0;
+
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+			case Mips.RS:
+				buffer.append("$" + info.rs);
+				minCharsPrinted += 2;
+				maxCharsPrinted += 3;
+
+				if (registers != null) {
+					buffer.append("#0x" + Lib.toHexString(registers[info.rs]));
+					minCharsPrinted += 11;
+					maxCharsPrinted += 11;
+				}
+				break;
+			case Mips.RT:
+				buffer.append("$" + info.rt);
+				minCharsPrinted += 2;
+				maxCharsPrinted += 3;
+
+				if (registers != null
+						&& (i != 0 || !Lib.test(Mips.DST, info.flags))
+						&& !Lib.test(Mips.DELAYEDLOAD, info.flags)) {
+					buffer.append("#0x" + Lib.toHexString(registers[info.rt]));
+					minCharsPrinted += 11;
+					maxCharsPrinted += 11;
+				}
+				break;
+			case Mips.RETURNADDRESS:
+				if (info.rd == 31)
+					continue;
+			case Mips.RD:
+				buffer.append("$" + info.rd);
+				minCharsPrinted += 2;
+				maxCharsPrinted += 3;
+				break;
+			case Mips.IMM:
+				buffer.append(info.imm);
+				minCharsPrinted += 1;
+				maxCharsPrinted += 6;
+				break;
+			case Mips.SHIFTAMOUNT:
+				buffer.append(info.sh);
+				minCharsPrinted += 1;
+				maxCharsPrinted += 2;
+				break;
+			case Mips.ADDR:
+				buffer.append(info.imm + "($" + info.rs);
+				minCharsPrinted += 4;
+				maxCharsPrinted += 5;
+
+				if (registers != null) {
+					buffer.append("#0x" + Lib.toHexString(registers[info.rs]));
+					minCharsPrinted += 11;
+					maxCharsPrinted += 11;
+				}
+
+				buffer.append(")");
+				break;
+			case Mips.TARGET:
+				buffer.append("0x" + Lib.toHexString(jtarget));
+				minCharsPrinted += 10;
+				maxCharsPrinted += 10;
+				break;
+			default:
+				Lib.assertTrue(false);
+			}
+			if (i + 1 < args.length) {
+				buffer.append(", ");
+				minCharsPrinted += 2;
+				maxCharsPrinted += 2;
+			}
+			else {
+				// most separation possible is tsi, 5+1+1=7,
+				// thankfully less than 8 (makes this possible)
+				Lib.assertTrue(maxCharsPrinted - minCharsPrinted < 8);
+				// longest string is stj, which is 40-42 chars w/ -d M;
+				// go for 48
+				while ((minCharsPrinted % 8) != 0) {
+					buffer.append(" ");
+					minCharsPrinted++;
+					maxCharsPrinted++;
+				}
+				while (minCharsPrinted < 48) {
+					buffer.append("\t");
+					minCharsPrinted += 8;
+				}
+			}
+		}
+
+		return buffer.toString();
+	}
+
+	/**
+	 * The default TLB replacement policy: use an invalid entry in the set if
+	 * there is one, and otherwise replace the entries of the set in turn.
+	 */
+	private class RoundRobinPolicy implements TLBReplacementPolicy {
+		public int chooseEntry(int vpn, int first, int ways) {
+			for (int i = first; i < first + ways; i++) {
+				if (!translations[i].valid)
+					return i;
+			}
+
+			int set = first / ways;
+			int way = next[set];
+			next[set] = (way + 1) % ways;
+
+			return first + way;
+		}
+
+		private int[] next = new int[tlbSize / tlbWays];
+	}
+
+	/**
+	 * A straight-line run of instructions within one physical page, ending
+	 * after a branch and its delay slot, before an instruction that always
+	 * traps, or at the end of the page. No code is generated: a block is an
+	 * array of decoded instructions, dispatched one after another to their
+	 * handlers.
+	 */
+	private class Block {
+		/**
+		 * Decode the block starting at the specified physical address.
+		 * 
+		 * @param paddr the physical address of the first instruction.
+		 */
+		void decode(int paddr) {
+			int end = (paddr / pageSize + 1) * pageSize;
+			Decoded[] found = new Decoded[maxBlockLength];
+			int length = 0;
+
+			for (int addr = paddr; addr < end && length < maxBlockLength; addr += 4) {
+				Decoded info = decodeAt(addr, Lib.bytesToInt(mainMemory, addr));
+
+				if (!blockable(info))
+					break;
+
+				found[length++] = info;
+
+				if (Lib.test(Mips.BRANCH, info.flags)) {
+					// the delay slot belongs to the block too, if it can
+					addr += 4;
+					if (addr < end && length < maxBlockLength) {
+						info = decodeAt(addr, Lib.bytesToInt(mainMemory, addr));
+						if (blockable(info)
+								&& !Lib.test(Mips.BRANCH, info.flags))
+							found[length++] = info;
+					}
+					break;
+				}
+			}
+
+			instructions = new Decoded[length];
+			System.arraycopy(found, 0, instructions, 0, length);
+		}
+
+		/**
+		 * Test whether memory still holds the instructions this block was
+		 * decoded from.
+		 */
+		boolean matches(byte[] memory, int paddr) {
+			for (int i = 0; i < instructions.length; i++) {
+				if (Lib.bytesToInt(memory, paddr + i * 4) != instructions[i].value)
+					return false;
+			}
+
+			return true;
+		}
+
+		private boolean blockable(Decoded info) {
+			switch (info.operation) {
+			case Mips.SYSCALL:
+			case Mips.UNIMPL:
+			case Mips.INVALID:
+				return false;
+			default:
+				return true;
+			}
+		}
+
+		/** Number of times this block was reached before being decoded. */
+		int count = 0;
+
+		/** The decoded instructions of this block, in order. */
+		Decoded[] instructions = null;
+	}
+
 	private static class Mips {
 		Mips() {
 		}
@@ -1100,6 +2599,7 @@ public final class Processor {
 			this(operation, name);
 			this.format = format;
 			this.flags = flags;
+			this.handler = Handler.forOperation(operation, format, flags);
 		}
 
 		int operation = INVALID;
@@ -1110,6 +2610,8 @@ public final class Processor {
 
 		int flags;
 
+		Handler handler = null;
+
 		// operation types
 		static final int INVALID = 0, UNIMPL = 1, ADD = 2, SUB = 3, MULT = 4,
 				DIV = 5, SLL = 6, SRA = 7, SRL = 8, SLT = 9, AND = 10, OR = 11,
@@ -0,0 +1,341 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A profiler for user programs. The processor reports the PC of every
+ * instruction it executes and every <tt>jal</tt> or <tt>jalr</tt> it takes,
+ * and the profiler keeps a count for each, in open-addressed tables of
+ * primitives, so that profiling does not allocate while the program runs. PCs
+ * can be sampled every <i>n</i> instructions instead of counted, to reduce
+ * the overhead further; calls are always counted exactly.
+ *
+ * <p>
+ * The profile is printed when Nachos halts. Addresses are symbolized against
+ * the sections of the COFF executables that were loaded: each call target is
+ * taken to be the start of a function, and every PC is charged to the closest
+ * function start below it in the same section. Since PCs are virtual,
+ * programs that run at the same time share one profile.
+ *
+ * <p>
+ * Profiling is enabled by setting <tt>Processor.profile</tt> to
+ * <tt>true</tt>. <tt>Processor.profileInterval</tt> sets the number of
+ * instructions per PC sample, and defaults to 1.
+ */
+final class Profiler {
+	/**
+	 * Allocate a new profiler.
+	 *
+	 * @param interval the number of instructions per PC sample.
+	 */
+	Profiler(int interval) {
+		Lib.assertTrue(interval > 0);
+
+		this.interval = interval;
+		untilSample = interval;
+
+		pcs = new int[initialCapacity];
+		pcCounts = new long[initialCapacity];
+		edges = new long[initialCapacity];
+		edgeCounts = new long[initialCapacity];
+	}
+
+	/**
+	 * Record that the instruction at the specified PC is about to execute.
+	 *
+	 * @param pc the address of the instruction.
+	 */
+	void instruction(int pc) {
+		numInstructions++;
+
+		if (--untilSample > 0)
+			return;
+
+		untilSample = interval;
+		numSamples++;
+
+		int slot = find(pcs, pcCounts, pc);
+		if (pcCounts[slot]++ == 0) {
+			pcs[slot] = pc;
+			if (++numPCs * 2 > pcs.length)
+				growPCs();
+		}
+	}
+
+	/**
+	 * Record a call.
+	 *
+	 * @param site the address of the <tt>jal</tt> or <tt>jalr</tt>.
+	 * @param target the address being called.
+	 */
+	void call(int site, int target) {
+		long edge = ((long) site << 32) | (target & 0xFFFFFFFFL);
+
+		int slot = find(edges, edgeCounts, edge);
+		if (edgeCounts[slot]++ == 0) {
+			edges[slot] = edge;
+			if (++numEdges * 2 > edges.length)
+				growEdges();
+		}
+	}
+
+	/**
+	 * Remember the sections of a COFF executable, to symbolize addresses
+	 * with.
+	 *
+	 * @param coff the executable.
+	 * @param name the name of the executable file.
+	 */
+	void addExecutable(Coff coff, String name) {
+		for (int s = 0; s < coff.getNumSections(); s++) {
+			CoffSection section = coff.getSection(s);
+
+			regions.add(new Region(name, section.getName(),
+					section.getFirstVPN() * Processor.pageSize,
+					section.getLength() * Processor.pageSize));
+		}
+
+		entries.add(coff.getEntryPoint());
+	}
+
+	/**
+	 * Print the flat profile and the call graph.
+	 */
+	void print() {
+		System.out.println("Profile: " + numInstructions + " instructions, "
+				+ numSamples + " samples (1 every " + interval + ")");
+
+		if (numSamples == 0)
+			return;
+
+		// every call target and program entry point starts a function
+		int[] starts = new int[numEdges + entries.size()];
+		int numStarts = 0;
+		for (int i = 0; i < edges.length; i++) {
+			if (edgeCounts[i] != 0)
+				starts[numStarts++] = (int) edges[i];
+		}
+		for (int entry : entries)
+			starts[numStarts++] = entry;
+		Arrays.sort(starts, 0, numStarts);
+
+		// charge samples to functions
+		String[] names = new String[numPCs];
+		long[] counts = new long[numPCs];
+		int numFunctions = 0;
+		for (int i = 0; i < pcs.length; i++) {
+			if (pcCounts[i] == 0)
+				continue;
+
+			String name = symbolize(function(starts, numStarts, pcs[i]));
+
+			int f = 0;
+			while (f < numFunctions && !names[f].equals(name))
+				f++;
+			if (f == numFunctions)
+				names[numFunctions++] = name;
+
+			counts[f] += pcCounts[i];
+		}
+
+		System.out.println("Flat profile:");
+		System.out.println("     samples      %  function");
+		for (int f : byCount(counts, numFunctions)) {
+			System.out.println(Lib.pad(counts[f], 12) + percent(counts[f]) + "  "
+					+ names[f]);
+		}
+
+		System.out.println("Hot instructions:");
+		System.out.println("     samples      %  pc");
+		int[] hot = byCount(pcCounts, pcCounts.length);
+		for (int i = 0; i < hot.length && i < maxHotPCs; i++) {
+			if (pcCounts[hot[i]] == 0)
+				break;
+
+			System.out.println(Lib.pad(pcCounts[hot[i]], 12)
+					+ percent(pcCounts[hot[i]]) + "  "
+					+ symbolize(pcs[hot[i]]));
+		}
+
+		System.out.println("Call graph:");
+		System.out.println("       calls  caller (call site) -> callee");
+		int[] calls = byCount(edgeCounts, edgeCounts.length);
+		for (int i = 0; i < calls.length; i++) {
+			if (edgeCounts[calls[i]] == 0)
+				break;
+
+			int site = (int) (edges[calls[i]] >> 32);
+			int target = (int) edges[calls[i]];
+
+			System.out.println(Lib.pad(edgeCounts[calls[i]], 12) + "  "
+					+ symbolize(function(starts, numStarts, site)) + " ("
+					+ symbolize(site) + ") -> " + symbolize(target));
+		}
+	}
+
+	/**
+	 * Return the start of the function containing the specified address: the
+	 * closest function start at or below it, in the same section.
+	 */
+	private int function(int[] starts, int numStarts, int pc) {
+		Region region = regionOf(pc);
+
+		int best = (region != null) ? region.start : pc;
+		for (int i = 0; i < numStarts; i++) {
+			if (starts[i] > pc)
+				break;
+			if (region == null || regionOf(starts[i]) == region)
+				best = starts[i];
+		}
+
+		return best;
+	}
+
+	private String symbolize(int address) {
+		Region region = regionOf(address);
+
+		if (region == null)
+			return "0x" + Lib.toHexString(address);
+
+		return region.file + ":" + region.section + "+0x"
+				+ Integer.toHexString(address - region.start);
+	}
+
+	/**
+	 * Return the section containing the specified address, preferring the
+	 * most recently loaded executable.
+	 */
+	private Region regionOf(int address) {
+		for (int i = regions.size() - 1; i >= 0; i--) {
+			Region region = regions.get(i);
+			if (address - region.start >= 0
+					&& address - region.start < region.length)
+				return region;
+		}
+
+		return null;
+	}
+
+	private String percent(long count) {
+		long hundredths = (count * 10000 + numSamples / 2) / numSamples;
+		String text = (hundredths / 100) + "." + ((hundredths % 100) / 10)
+				+ (hundredths % 10);
+		return Lib.pad(text, 7);
+	}
+
+
+
+	/**
+	 * Return the indices of the first <tt>length</tt> counts, ordered by
+	 * decreasing count.
+	 */
+	private static int[] byCount(final long[] counts, int length) {
+		Integer[] order = new Integer[length];
+		for (int i = 0; i < length; i++)
+			order[i] = i;
+
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Long.compare(counts[b], counts[a]);
+			}
+		});
+
+		int[] result = new int[length];
+		for (int i = 0; i < length; i++)
+			result[i] = order[i];
+		return result;
+	}
+
+	private static int find(int[] keys, long[] counts, int key) {
+		int mask = keys.length - 1;
+		int slot = (key * 0x9E3779B9 >>> 7) & mask;
+
+		while (counts[slot] != 0 && keys[slot] != key)
+			slot = (slot + 1) & mask;
+
+		return slot;
+	}
+
+	private static int find(long[] keys, long[] counts, long key) {
+		int mask = keys.length - 1;
+		int slot = ((int) (key ^ (key >>> 32)) * 0x9E3779B9 >>> 7) & mask;
+
+		while (counts[slot] != 0 && keys[slot] != key)
+			slot = (slot + 1) & mask;
+
+		return slot;
+	}
+
+	private void growPCs() {
+		int[] oldPCs = pcs;
+		long[] oldCounts = pcCounts;
+
+		pcs = new int[oldPCs.length * 2];
+		pcCounts = new long[oldPCs.length * 2];
+
+		for (int i = 0; i < oldPCs.length; i++) {
+			if (oldCounts[i] == 0)
+				continue;
+
+			int slot = find(pcs, pcCounts, oldPCs[i]);
+			pcs[slot] = oldPCs[i];
+			pcCounts[slot] = oldCounts[i];
+		}
+	}
+
+	private void growEdges() {
+		long[] oldEdges = edges;
+		long[] oldCounts = edgeCounts;
+
+		edges = new long[oldEdges.length * 2];
+		edgeCounts = new long[oldEdges.length * 2];
+
+		for (int i = 0; i < oldEdges.length; i++) {
+			if (oldCounts[i] == 0)
+				continue;
+
+			int slot = find(edges, edgeCounts, oldEdges[i]);
+			edges[slot] = oldEdges[i];
+			edgeCounts[slot] = oldCounts[i];
+		}
+	}
+
+	private static class Region {
+		Region(String file, String section, int start, int length) {
+			this.file = file;
+			this.section = section;
+			this.start = start;
+			this.length = length;
+		}
+
+		String file, section;
+
+		int start, length;
+	}
+
+	private int interval, untilSample;
+
+	private long numInstructions = 0, numSamples = 0;
+
+	/** PCs sampled, and how many times each was sampled. */
+	private int[] pcs;
+	private long[] pcCounts;
+	private int numPCs = 0;
+
+	/** Call edges (call site in the high word, target in the low word). */
+	private long[] edges;
+	private long[] edgeCounts;
+	private int numEdges = 0;
+
+	private ArrayList<Region> regions = new ArrayList<Region>();
+
+	private ArrayList<Integer> entries = new ArrayList<Integer>();
+
+	private static final int initialCapacity = 1024;
+
+	private static final int maxHotPCs = 20;
+}
@@ -19,18 +19,38 @@ public final class Stats {
 	 */
 	public void print() {
 		System.out.println("Ticks: total " + totalTicks + ", kernel "
-				+ kernelTicks + ", user " + userTicks);
+				+ kernelTicks + ", user " + userTicks
+				+ (idleTicks != 0 ? ", idle " + idleTicks : ""));
 		System.out.println("Disk I/O: reads " + numDiskReads + ", writes "
 				+ numDiskWrites);
 		System.out.println("Console I/O: reads " + numConsoleReads
 				+ ", writes " + numConsoleWrites);
 		System.out.println("Paging: page faults " + numPageFaults
 				+ ", TLB misses " + numTLBMisses);
+		if (tlbEntryHits != null) {
+			System.out.println("TLB: hits by entry " + join(tlbEntryHits)
+					+ ", misses by set " + join(tlbSetMisses));
+		}
 		System.out.println("Swap: COFF reads " + numCOFFReads
 				+ ", swap reads " + numSwapReads
 			        + ", swap writes " + numSwapWrites);
 		System.out.println("Network I/O: received " + numPacketsReceived
 				+ ", sent " + numPacketsSent);
+		if (numDeadlines != 0) {
+			System.out.println("Deadlines: met "
+					+ (numDeadlines - numDeadlineMisses) + ", missed "
+					+ numDeadlineMisses);
+		}
+	}
+
+	private static String join(long[] counts) {
+		StringBuffer buffer = new StringBuffer("[");
+		for (int i = 0; i < counts.length; i++) {
+			if (i > 0)
+				buffer.append(' ');
+			buffer.append(counts[i]);
+		}
+		return buffer.append(']').toString();
 	}
 
 	/**
@@ -48,6 +68,12 @@ public final class Stats {
 	 */
 	public long userTicks = 0;
 
+	/**
+	 * The total amount of simulated time that Nachos has skipped while idle,
+	 * waiting for the next interrupt.
+	 */
+	public long idleTicks = 0;
+
 	/** The total number of sectors Nachos has read from the simulated disk. */
 	public int numDiskReads = 0;
 
@@ -66,6 +92,18 @@ public final class Stats {
 	/** The total number of TLB misses that have occurred. */
 	public int numTLBMisses = 0;
 
+	/**
+	 * The number of translations made by each TLB entry, or <tt>null</tt> if
+	 * there is no TLB.
+	 */
+	public long[] tlbEntryHits = null;
+
+	/**
+	 * The number of TLB misses in each TLB set, or <tt>null</tt> if there is
+	 * no TLB.
+	 */
+	public long[] tlbSetMisses = null;
+
         /** The total number of pages read from COFF files. */
         public int numCOFFReads = 0;
 
@@ -81,6 +119,15 @@ public final class Stats {
 	/** The total number of packets Nachos has received from the network. */
 	public int numPacketsReceived = 0;
 
+	/** The total number of jobs of real-time threads that have finished. */
+	public int numDeadlines = 0;
+
+	/**
+	 * The total number of jobs of real-time threads that finished after their
+	 * deadline.
+	 */
+	public int numDeadlineMisses = 0;
+
 	/**
 	 * The amount to advance simulated time after each user instructions is
 	 * executed.
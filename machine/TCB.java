@@ -6,6 +6,9 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.reflect.Method;
 import java.security.PrivilegedAction;
 
 /**
@@ -21,6 +24,27 @@ import java.security.PrivilegedAction;
  * <p>
  * Do not use the <i>synchronized</i> keyword <b>anywhere</b> in your code. It's
  * against the rules, <i>and</i> it can easily deadlock nachos.
+ * 
+ * <p>
+ * Control passes from one TCB to the next through a single volatile owner
+ * word. A TCB waiting for its turn spins briefly, on a multiprocessor, and
+ * then parks; <tt>TCB.spinCount</tt> sets how long it spins.
+ * 
+ * <p>
+ * If <tt>TCB.virtualThreads</tt> is set and the JVM supports virtual threads,
+ * each TCB after the first is backed by a virtual thread, which is much
+ * cheaper to create and hold than a platform thread. On a JVM without virtual
+ * threads, TCBs fall back to platform threads with small stacks. Either way
+ * the limit on the number of TCBs is raised to <tt>maxVirtualThreads</tt>.
+ * JDK 21, the first with virtual threads, only lets Nachos install its
+ * security manager when run with <tt>-Djava.security.manager=allow</tt>.
+ * <tt>TCB.stackSize</tt> and <tt>TCB.maxThreads</tt> override the stack size
+ * of platform threads and the limit.
+ * 
+ * <p>
+ * The Java thread of a destroyed TCB is not thrown away, but parked in a pool
+ * and reused by the next TCB to start. <tt>TCB.poolSize</tt> sets how many
+ * idle threads are kept, and 0 disables reuse.
  */
 public final class TCB {
 	/**
@@ -39,6 +63,46 @@ public final class TCB {
 	public static void givePrivilege(Privilege privilege) {
 		TCB.privilege = privilege;
 		privilege.tcb = new TCBPrivilege();
+
+		boolean virtual = Config.getBoolean("TCB.virtualThreads", false);
+		if (virtual)
+			findVirtualThreadBuilder();
+
+		stackSize = Config.getInteger("TCB.stackSize",
+				(virtual && virtualThreadBuilder == null) ? smallStackSize : 0);
+		threadLimit = Config.getInteger("TCB.maxThreads",
+				virtual ? maxVirtualThreads : maxThreads);
+
+		int poolSize = Config.getInteger("TCB.poolSize", defaultPoolSize);
+		if (poolSize > 0)
+			idleCarriers = new ArrayBlockingQueue<Carrier>(poolSize);
+
+		if (Runtime.getRuntime().availableProcessors() > 1)
+			spinCount = Config.getInteger("TCB.spinCount", defaultSpinCount);
+	}
+
+	/**
+	 * Look up <tt>Thread.ofVirtual()</tt>, which only exists on newer JVMs,
+	 * by reflection. Leaves <tt>virtualThreadBuilder</tt> <tt>null</tt> if
+	 * virtual threads are not available.
+	 */
+	private static void findVirtualThreadBuilder() {
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+				try {
+					Object builder = Thread.class.getMethod("ofVirtual")
+							.invoke(null);
+					Method unstarted = Class.forName("java.lang.Thread$Builder")
+							.getMethod("unstarted", Runnable.class);
+
+					virtualThreadBuilder = builder;
+					virtualThreadFactory = unstarted;
+				}
+				catch (Exception e) {
+					// no virtual threads, or only as a preview feature
+				}
+			}
+		});
 	}
 
 	/**
@@ -68,7 +132,7 @@ public final class TCB {
 		 * Make sure there aren't too many running TCBs already. This limitation
 		 * exists in an effort to prevent wild thread usage.
 		 */
-		Lib.assertTrue(runningThreads.size() < maxThreads);
+		Lib.assertTrue(runningThreads.size() < threadLimit);
 
 		isFirstTCB = (currentTCB == null);
 
@@ -91,20 +155,27 @@ public final class TCB {
 
 		if (!isFirstTCB) {
 			/*
-			 * If this is not the first TCB, we have to make a new Java thread
-			 * to run it. Creating Java threads is a privileged operation.
+			 * If this is not the first TCB, we need a Java thread to run it.
+			 * We reuse the thread of a destroyed TCB if one is waiting in the
+			 * pool, and otherwise make a new one. Creating Java threads is a
+			 * privileged operation.
 			 */
-			tcbTarget = new Runnable() {
-				public void run() {
-					threadroot();
-				}
-			};
+			Carrier carrier = (idleCarriers != null) ? idleCarriers.poll()
+					: null;
 
-			privilege.doPrivileged(new Runnable() {
-				public void run() {
-					javaThread = new Thread(tcbTarget);
-				}
-			});
+			if (carrier == null) {
+				final Carrier newCarrier = new Carrier();
+
+				privilege.doPrivileged(new Runnable() {
+					public void run() {
+						newCarrier.thread = newJavaThread(newCarrier);
+					}
+				});
+
+				carrier = newCarrier;
+			}
+
+			javaThread = carrier.thread;
 
 			/*
 			 * The Java thread hasn't yet started, but we need to get it
@@ -113,9 +184,9 @@ public final class TCB {
 			 * wake us up from threadroot(). Once the new TCB wakes us up, it's
 			 * safe to context switch to the new TCB.
 			 */
-			currentTCB.running = false;
+			owner = null;
 
-			this.javaThread.start();
+			carrier.run(this);
 			currentTCB.waitForInterrupt();
 		}
 		else {
@@ -130,6 +201,27 @@ public final class TCB {
 		}
 	}
 
+	/**
+	 * Create the Java thread for a TCB: a virtual thread if they are in use,
+	 * otherwise a platform thread with the configured stack size.
+	 */
+	private static Thread newJavaThread(Runnable target) {
+		if (virtualThreadBuilder != null) {
+			try {
+				return (Thread) virtualThreadFactory.invoke(
+						virtualThreadBuilder, target);
+			}
+			catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		if (stackSize != 0)
+			return new Thread(null, target, "nachos", stackSize);
+
+		return new Thread(target);
+	}
+
 	/**
 	 * Return the TCB of the currently running thread.
 	 */
@@ -161,13 +253,13 @@ public final class TCB {
 		 * There are some synchronization concerns here. As soon as we wake up
 		 * the next thread, we cannot assume anything about static variables, or
 		 * about any TCB's state. Therefore, before waking up the next thread,
-		 * we must latch the value of currentTCB, and set its running flag to
-		 * false (so that, in case we get interrupted before we call yield(),
-		 * the interrupt will set the running flag and yield() won't block).
+		 * we must latch the value of currentTCB. Handing ownership to the next
+		 * thread takes it from this one, so in case we get interrupted before
+		 * we call yield(), the interrupt will hand it back and yield() won't
+		 * block.
 		 */
 
 		TCB previous = currentTCB;
-		previous.running = false;
 
 		this.interrupt();
 		previous.yield();
@@ -191,7 +283,6 @@ public final class TCB {
 		toBeDestroyed = null;
 
 		this.done = true;
-		currentTCB.running = false;
 
 		this.interrupt();
 		currentTCB.waitForInterrupt();
@@ -223,10 +314,10 @@ public final class TCB {
 		if (!isFirstTCB) {
 			/*
 			 * start() is waiting for us to wake it up, signalling that it's OK
-			 * to context switch to us. We leave the running flag false so that
-			 * we'll still run if a context switch happens before we go to
-			 * sleep. All we have to do is wake up the current TCB and then wait
-			 * to get woken up by contextSwitch() or destroy().
+			 * to context switch to us. If a context switch to us happens before
+			 * we go to sleep, we'll find that we already own the processor. All
+			 * we have to do is wake up the current TCB and then wait to get
+			 * woken up by contextSwitch() or destroy().
 			 */
 
 			currentTCB.interrupt();
@@ -239,7 +330,7 @@ public final class TCB {
 			 */
 
 			currentTCB = this;
-			running = true;
+			owner = this;
 		}
 
 		try {
@@ -291,32 +382,49 @@ public final class TCB {
 	}
 
 	/**
-	 * Waits on the monitor bound to this TCB until its <tt>running</tt> flag is
-	 * set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a TCB
-	 * needs to go to wait for its turn to run. This includes the ping-pong
-	 * process of starting and destroying TCBs, as well as in context switching
-	 * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
-	 * is updated by <tt>contextSwitch()</tt> before we get called.
+	 * Waits until <tt>owner</tt> is this TCB. <tt>waitForInterrupt()</tt> is
+	 * used whenever a TCB needs to go to wait for its turn to run. This
+	 * includes the ping-pong process of starting and destroying TCBs, as well
+	 * as in context switching from this TCB to another. We don't rely on
+	 * <tt>currentTCB</tt>, since it is updated by <tt>contextSwitch()</tt>
+	 * before we get called.
+	 * 
+	 * <p>
+	 * On a multiprocessor the thread that hands us ownership is usually about
+	 * to block, so we spin briefly before parking, which saves both the park
+	 * and the unpark when the handoff is quick.
 	 */
-	private synchronized void waitForInterrupt() {
-		while (!running) {
-			try {
-				wait();
-			}
-			catch (InterruptedException e) {
-			}
+	private void waitForInterrupt() {
+		for (int i = 0; i < spinCount; i++) {
+			if (owner == this)
+				return;
+
+			Thread.onSpinWait();
+		}
+
+		while (owner != this) {
+			/*
+			 * parked must be visible before we check owner again, and
+			 * interrupt() sets owner before it checks parked, so either we
+			 * see the handoff or interrupt() sees that we need unparking.
+			 */
+			parked = true;
+			if (owner != this)
+				LockSupport.park(this);
+			parked = false;
 		}
 	}
 
 	/**
-	 * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-	 * and signalling the monitor bound to it. Used in the ping-pong process of
-	 * starting and destroying TCBs, as well as in context switching to this
-	 * TCB.
+	 * Hand the processor to this TCB, and unpark its thread if it is parked.
+	 * Used in the ping-pong process of starting and destroying TCBs, as well
+	 * as in context switching to this TCB.
 	 */
-	private synchronized void interrupt() {
-		running = true;
-		notify();
+	private void interrupt() {
+		owner = this;
+
+		if (parked)
+			LockSupport.unpark(javaThread);
 	}
 
 	private void associateThread(KThread thread) {
@@ -342,10 +450,67 @@ public final class TCB {
 
 	/**
 	 * The maximum number of started, non-destroyed TCB's that can be in
-	 * existence.
+	 * existence, by default.
 	 */
 	public static final int maxThreads = 250;
 
+	/**
+	 * The default maximum number of TCB's when <tt>TCB.virtualThreads</tt> is
+	 * set.
+	 */
+	public static final int maxVirtualThreads = 100000;
+
+	/** The number of idle carrier threads kept for reuse, by default. */
+	private static final int defaultPoolSize = 32;
+
+	/**
+	 * The carriers of destroyed TCBs, parked until <tt>start()</tt> gives them
+	 * another TCB to run, or <tt>null</tt> if carriers are not reused.
+	 * Carriers add themselves from their own Java thread, after the TCB they
+	 * ran has been destroyed, so this must be thread-safe.
+	 */
+	private static ArrayBlockingQueue<Carrier> idleCarriers = null;
+
+	/** The number of spins before parking on a multiprocessor, by default. */
+	private static final int defaultSpinCount = 1000;
+
+	/** The maximum number of TCB's for this run. */
+	private static int threadLimit = maxThreads;
+
+	/**
+	 * The stack size of platform threads when virtual threads are requested
+	 * but not available.
+	 */
+	private static final int smallStackSize = 256 * 1024;
+
+	/** The stack size of new platform threads, or 0 for the JVM default. */
+	private static long stackSize = 0;
+
+	/**
+	 * The <tt>Thread.Builder</tt> for virtual threads and its
+	 * <tt>unstarted()</tt> method, or <tt>null</tt> if not using virtual
+	 * threads.
+	 */
+	private static Object virtualThreadBuilder = null;
+
+	private static Method virtualThreadFactory = null;
+
+	/**
+	 * The TCB whose Java thread ought to be running. This is an entirely
+	 * different condition from membership in <tt>runningThreads</tt>, which
+	 * contains all TCB objects that have started and have not terminated.
+	 * When starting or destroying a TCB, this is temporarily a TCB other than
+	 * the current TCB, or <tt>null</tt>. Handing the processor to another TCB
+	 * is a single write to this word.
+	 */
+	private static volatile TCB owner = null;
+
+	/**
+	 * The number of times a TCB checks <tt>owner</tt> before parking. Spinning
+	 * is pointless on a uniprocessor.
+	 */
+	private static int spinCount = 0;
+
 	/**
 	 * A reference to the currently running TCB. It is initialized to
 	 * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -395,15 +560,10 @@ public final class TCB {
 	private Thread javaThread = null;
 
 	/**
-	 * <tt>true</tt> if and only if the Java thread bound to this TCB ought to
-	 * be running. This is an entirely different condition from membership in
-	 * <tt>runningThreads</tt>, which contains all TCB objects that have started
-	 * and have not terminated. <tt>running</tt> is only <tt>true</tt> when the
-	 * associated Java thread ought to run ASAP. When starting or destroying a
-	 * TCB, this is temporarily true for a thread other than that of the current
-	 * TCB.
+	 * <tt>true</tt> while the Java thread bound to this TCB is parked, or
+	 * about to park, in <tt>waitForInterrupt()</tt>.
 	 */
-	private boolean running = false;
+	private volatile boolean parked = false;
 
 	/**
 	 * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -418,7 +578,57 @@ public final class TCB {
 
 	private Runnable target;
 
-	private Runnable tcbTarget;
+	/**
+	 * Runs TCBs in a Java thread. Once a TCB has been destroyed, its carrier
+	 * waits in <tt>idleCarriers</tt> to run another, if the pool is not full,
+	 * so that forking a thread does not always create a Java thread.
+	 */
+	private static class Carrier implements Runnable {
+		/**
+		 * Run a TCB in this carrier's thread, starting the thread if
+		 * necessary. Starting or unparking a virtual thread may start the
+		 * JVM's scheduler and its carrier threads, which is privileged.
+		 */
+		void run(TCB tcb) {
+			this.tcb = tcb;
+
+			privilege.doPrivileged(new Runnable() {
+				public void run() {
+					if (!started) {
+						started = true;
+						thread.start();
+					}
+					else {
+						LockSupport.unpark(thread);
+					}
+				}
+			});
+		}
+
+		public void run() {
+			while (true) {
+				TCB finished = tcb;
+				finished.threadroot();
+
+				// only reuse the thread of a properly destroyed TCB
+				if (!finished.done)
+					return;
+
+				tcb = null;
+				if (idleCarriers == null || !idleCarriers.offer(this))
+					return;
+
+				while (tcb == null)
+					LockSupport.park(this);
+			}
+		}
+
+		Thread thread;
+
+		private boolean started = false;
+
+		private volatile TCB tcb = null;
+	}
 
 	private static class TCBPrivilege implements Privilege.TCBPrivilege {
 		public void associateThread(KThread thread) {
@@ -0,0 +1,27 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+/**
+ * Chooses which TLB entry to replace when a virtual page must be mapped. A
+ * kernel can install its own policy with
+ * <tt>Processor.setTLBReplacementPolicy()</tt>, and then ask the processor
+ * where to put a new entry with <tt>Processor.chooseTLBEntry()</tt>.
+ *
+ * @see nachos.machine.Processor#chooseTLBEntry
+ */
+public interface TLBReplacementPolicy {
+	/**
+	 * Choose the TLB entry to replace in order to map the specified virtual
+	 * page. The entry must be in the set that can map the page. The current
+	 * contents of the set can be examined with
+	 * <tt>Processor.readTLBEntry()</tt>.
+	 *
+	 * @param vpn the virtual page number to be mapped.
+	 * @param first the number of the first entry in the page's set.
+	 * @param ways the number of entries in the set.
+	 * @return the number of the entry to replace, between <tt>first</tt> and
+	 * <tt>first + ways - 1</tt>.
+	 */
+	public int chooseEntry(int vpn, int first, int ways);
+}
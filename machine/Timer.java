@@ -13,6 +13,12 @@ import nachos.security.*;
  * interrupt to occur every time approximately 500 clock ticks pass. There is a
  * small degree of randomness here, so interrupts do not occur exactly every 500
  * ticks.
+ * 
+ * <p>
+ * If <tt>Timer.tickless</tt> is set, the timer does not interrupt periodically.
+ * Instead, the kernel calls <tt>requestInterrupt()</tt> with the next time it
+ * needs to preempt a thread or wake one up, and the timer interrupts only
+ * then.
  */
 public final class Timer {
 	/**
@@ -38,7 +44,10 @@ public final class Timer {
 			}
 		};
 
-		scheduleInterrupt();
+		tickless = Config.getBoolean("Timer.tickless", false);
+
+		if (!tickless)
+			scheduleInterrupt();
 	}
 
 	/**
@@ -60,8 +69,68 @@ public final class Timer {
 		return privilege.stats.totalTicks;
 	}
 
+	/**
+	 * Test whether the timer is in tickless mode.
+	 * 
+	 * @return <tt>true</tt> if the timer only interrupts when requested.
+	 */
+	public boolean isTickless() {
+		return tickless;
+	}
+
+	/**
+	 * Request a timer interrupt at the specified time, or as soon as possible
+	 * if that time has passed. Only the earliest outstanding request is kept,
+	 * and the interrupt scheduled for a later one is cancelled: once the timer
+	 * interrupts, all requests are forgotten, and the interrupt handler must
+	 * request the next interrupt it needs. Has no effect unless the timer is
+	 * in tickless mode.
+	 * 
+	 * @param time the time at which to interrupt.
+	 */
+	public void requestInterrupt(long time) {
+		if (!tickless)
+			return;
+
+		long now = getTime();
+		if (time <= now)
+			time = now + 1;
+
+		if (requestedTime != -1 && requestedTime <= time)
+			return;
+
+		// a superseded interrupt must not stay pending, or the processor would
+		// stop running blocks of instructions at its time for nothing
+		if (requestedTime != -1)
+			privilege.interrupt.cancel(timerInterrupt);
+
+		requestedTime = time;
+		privilege.interrupt.schedule(time - now, "timer", timerInterrupt);
+	}
+
+	/**
+	 * Record that a job of a real-time thread has finished, and whether it
+	 * finished after its deadline. The counts are printed with the other
+	 * statistics when Nachos halts.
+	 * 
+	 * @param deadline the time by which the job had to finish.
+	 */
+	public void finishJob(long deadline) {
+		privilege.stats.numDeadlines++;
+		if (getTime() > deadline)
+			privilege.stats.numDeadlineMisses++;
+	}
+
 	private void timerInterrupt() {
-		scheduleInterrupt();
+		if (tickless) {
+			Lib.assertTrue(requestedTime != -1 && getTime() >= requestedTime);
+
+			requestedTime = -1;
+		}
+		else {
+			scheduleInterrupt();
+		}
+
 		scheduleAutoGraderInterrupt();
 
 		lastTimerInterrupt = getTime();
@@ -83,6 +152,11 @@ public final class Timer {
 
 	private long lastTimerInterrupt;
 
+	private boolean tickless;
+
+	/** The time of the earliest outstanding request, or -1 if none. */
+	private long requestedTime = -1;
+
 	private Runnable timerInterrupt;
 
 	private Runnable autoGraderInterrupt;
@@ -149,6 +149,14 @@ public abstract class Privilege {
 		 */
 		public void schedule(long when, String type, Runnable handler);
 
+		/**
+		 * Cancel every pending interrupt that would call the specified
+		 * handler.
+		 * 
+		 * @param handler the handler whose interrupts to cancel.
+		 */
+		public void cancel(Runnable handler);
+
 		/**
 		 * Advance the simulated time.
 		 * 
@@ -157,6 +165,27 @@ public abstract class Privilege {
 		 * user code.
 		 */
 		public void tick(boolean inKernelMode);
+
+		/**
+		 * Return the number of user instructions that can be executed before
+		 * any pending interrupt becomes due. Each of these instructions may be
+		 * accounted for with <tt>chargeUserTicks()</tt> instead of
+		 * <tt>tick(false)</tt>.
+		 * 
+		 * @return the number of user ticks that can safely be charged in bulk,
+		 * or <tt>0</tt> if every instruction must be followed by a call to
+		 * <tt>tick(false)</tt>.
+		 */
+		public long userTicksUntilDue();
+
+		/**
+		 * Advance the simulated time by the specified number of user
+		 * instructions, without checking for due interrupts. Must not exceed
+		 * the value returned by <tt>userTicksUntilDue()</tt>.
+		 * 
+		 * @param count the number of user instructions executed.
+		 */
+		public void chargeUserTicks(long count);
 	}
 
 	/**
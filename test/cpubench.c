@@ -0,0 +1,56 @@
+/*
+ * cpubench.c
+ *
+ * Measure the speed of the instruction interpreter.  Runs a fixed mix
+ * of arithmetic, logical, shift, multiply, load, store, branch and call
+ * instructions, with no system calls until the end, so that the running
+ * time is spent almost entirely executing user instructions.  Time the
+ * whole run and divide by the number of user ticks Nachos reports at
+ * halt to get the cost per simulated instruction.
+ *
+ * Exits with a checksum of the work done, which should not change
+ * between interpreter versions.
+ */
+
+#include "syscall.h"
+
+#define NROUNDS	2000
+#define NWORDS	256
+
+int words[NWORDS];
+unsigned char bytes[NWORDS];
+
+int
+mix (int a, int b)
+{
+    return ((a << 5) | ((unsigned) a >> 27)) ^ (b + 17);
+}
+
+int
+main (int argc, char *argv[])
+{
+    int round, i;
+    int sum = 0;
+
+    for (i = 0; i < NWORDS; i++) {
+	words[i] = i * 2654435761u;
+	bytes[i] = i;
+    }
+
+    for (round = 0; round < NROUNDS; round++) {
+	for (i = 0; i < NWORDS; i++) {
+	    int w = words[i];
+
+	    if (w & 1)
+		sum += w * round;
+	    else
+		sum -= bytes[i];
+
+	    sum = mix (sum, w);
+	    words[i] = w ^ (sum >> 3);
+	    bytes[i] = sum;
+	}
+    }
+
+    exit (sum);
+}
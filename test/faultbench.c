@@ -0,0 +1,39 @@
+/*
+ * faultbench.c
+ *
+ * Measure the cost of a page fault.  Touches one word on every page of
+ * an array larger than physical memory, over and over, so that under a
+ * demand-paged VM system nearly every touch faults.  Time the whole run
+ * and divide by the number of page faults Nachos reports at halt.
+ *
+ * Note that the program does not use printf, so that the only
+ * exceptions it raises are page faults and the final exit.  It exits
+ * with status -1000 if the data validates, and otherwise with the
+ * index of the first bad page.
+ */
+
+#define PAGESIZE 1024
+#define NPAGES	64
+#define NPASSES	100
+
+int bigbuf[NPAGES * PAGESIZE / sizeof (int)];
+
+int
+main (int argc, char *argv[])
+{
+    int pass, page;
+
+    for (pass = 0; pass < NPASSES; pass++) {
+	for (page = 0; page < NPAGES; page++) {
+	    bigbuf[page * PAGESIZE / sizeof (int)]++;
+	}
+    }
+
+    for (page = 0; page < NPAGES; page++) {
+	if (bigbuf[page * PAGESIZE / sizeof (int)] != NPASSES) {
+	    exit (page);
+	}
+    }
+
+    exit (-1000);
+}
@@ -0,0 +1,29 @@
+/*
+ * sysbench.c
+ *
+ * Measure the cost of a system call.  Makes a large number of close()
+ * calls on a bad file descriptor, which the kernel rejects without
+ * doing any real work, so nearly all of the running time is spent
+ * raising and delivering the syscall exception.  Time the whole run
+ * (e.g., "time nachos -x sysbench.coff") and divide by NCALLS.
+ *
+ * Exits with status 0 if every call failed as expected.
+ */
+
+#include "syscall.h"
+
+#define NCALLS	200000
+
+int
+main (int argc, char *argv[])
+{
+    int i;
+
+    for (i = 0; i < NCALLS; i++) {
+	if (close (-1) != -1) {
+	    exit (i + 1);
+	}
+    }
+
+    exit (0);
+}
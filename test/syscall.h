@@ -25,6 +25,7 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallProcStats	13
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -246,6 +247,30 @@ int connect(int host, int port);
  */
 int accept(int port);
 
+/* PROCESS ACCOUNTING SYSCALLS: procstats */
+
+/* The time a process has spent in each state, and the events it caused. */
+struct procstats {
+    int runTicks;		/* ticks spent running */
+    int readyTicks;		/* ticks spent waiting for the CPU */
+    int blockedTicks;		/* ticks spent blocked */
+    int voluntarySwitches;	/* times it blocked or yielded */
+    int involuntarySwitches;	/* times it was preempted */
+    int pageFaults;
+    int tlbMisses;
+    int syscalls;
+};
+
+/**
+ * Fill in *stats with the accounting of the process with the specified
+ * processID, or of the calling process if processID is -1. Tick counts are
+ * truncated to 32 bits.
+ *
+ * Returns 0 on success, or -1 if there is no such process, the process has
+ * exited, or stats is not a valid address.
+ */
+int procstats(int processID, struct procstats *stats);
+
 #endif /* START_S */
 
 #endif /* SYSCALL_H */
@@ -78,8 +78,6 @@ public class Alarm {
 	 * should be run.
 	 */
 	public void timerInterrupt() {
-		
-		KThread.currentThread().yield();
 
 		long currentTime = Machine.timer().getTime();
 	 	long queueSize = waitingQueue.size();
@@ -103,8 +101,14 @@ public class Alarm {
 			}
 		}
 		// Machine.interrupt().enable();
-		// KThread.currentThread().yield();
 
+		// a tickless timer must be asked for the next wakeup
+		if (!waitingQueue.isEmpty())
+			Machine.timer().requestInterrupt(waitingQueue.peek().getTime());
+
+		// yield last, so that threads woken above are not delayed until the
+		// current thread runs again
+		KThread.currentThread().yield();
 	}
 
 	/**
@@ -133,6 +137,7 @@ public class Alarm {
 		//while (wakeTime > Machine.timer().getTime()) {
 			// TODO: check if exceeded max clock time
 			waitingQueue.add(tiq);
+			Machine.timer().requestInterrupt(wakeTime);
 			Machine.interrupt().disable();
 			KThread.sleep();
 			// Machine.interrupt().enable();
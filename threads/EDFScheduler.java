@@ -0,0 +1,301 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * A scheduler with an earliest-deadline-first real-time class above a
+ * best-effort class.
+ * 
+ * <p>
+ * A thread joins the real-time class with <tt>KThread.setRealTime()</tt>,
+ * declaring a period, a relative deadline and a budget: the most ticks it
+ * runs each period. Each period, it runs one job and then calls
+ * <tt>KThread.waitForNextPeriod()</tt>. Each job's absolute deadline is the
+ * start of its period plus the relative deadline, and waiting real-time
+ * threads are always chosen before best-effort threads, earliest deadline
+ * first. Ties go to whichever was queued first.
+ * 
+ * <p>
+ * A thread is only admitted if the sum of the densities, the budget divided by
+ * the relative deadline, of all real-time threads stays within
+ * <tt>EDFScheduler.maxUtilization</tt> (default 0.9). On one processor this
+ * guarantees every deadline, while leaving some of the processor to the
+ * best-effort class. A thread that runs past its budget is queued as a
+ * best-effort thread until its next period, so it cannot make the others
+ * miss their deadlines. Each finished job is counted in the machine
+ * statistics, as met or missed.
+ * 
+ * <p>
+ * Best-effort threads are scheduled by the scheduler named by
+ * <tt>EDFScheduler.bestEffort</tt> (default <tt>RoundRobinScheduler</tt>),
+ * which also handles priorities. Only best-effort threads transfer priority.
+ * 
+ * <p>
+ * Waiting real-time threads are kept in a binary heap ordered by deadline, so
+ * choosing one and adding one both take <i>O</i>(log <i>n</i>) time. A
+ * released thread preempts a running thread at the next timer interrupt, so
+ * the response time of a job is bounded by its deadline plus the timer
+ * interval.
+ */
+public class EDFScheduler extends Scheduler {
+	/**
+	 * Allocate a new earliest-deadline-first scheduler.
+	 */
+	public EDFScheduler() {
+		bestEffort = (Scheduler) Lib.constructObject(Config.getString(
+				"EDFScheduler.bestEffort", defaultBestEffort));
+		donating = bestEffort instanceof PriorityScheduler;
+
+		maxUtilization = Config.getDouble("EDFScheduler.maxUtilization",
+				defaultMaxUtilization);
+		Lib.assertTrue(maxUtilization > 0 && maxUtilization <= 1);
+	}
+
+	/**
+	 * Allocate a new thread queue, with a best-effort queue underneath.
+	 * 
+	 * @param transferPriority passed to the best-effort queue.
+	 * @return a new thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new DeadlineQueue(bestEffort.newThreadQueue(transferPriority),
+				transferPriority && donating);
+	}
+
+	public int getPriority(KThread thread) {
+		return bestEffort.getPriority(thread);
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return bestEffort.getEffectivePriority(thread);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		bestEffort.setPriority(thread, priority);
+	}
+
+	public boolean increasePriority() {
+		return bestEffort.increasePriority();
+	}
+
+	public boolean decreasePriority() {
+		return bestEffort.decreasePriority();
+	}
+
+	/**
+	 * Admit the specified thread to the real-time class, if the total density
+	 * stays within <tt>maxUtilization</tt>. A thread already in the class is
+	 * moved to the new parameters, or left as it was if they are not
+	 * admitted.
+	 */
+	public boolean setRealTime(KThread thread, long period, long deadline,
+			long budget) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		RealTimeState state = (RealTimeState) thread.realTimeState;
+		double oldDensity = (state != null) ? state.density : 0;
+
+		if (period == 0) {
+			utilization -= oldDensity;
+			thread.realTimeState = null;
+			return true;
+		}
+
+		Lib.assertTrue(budget > 0 && budget <= deadline && deadline <= period);
+
+		double density = (double) budget / deadline;
+		if (utilization - oldDensity + density > maxUtilization + epsilon)
+			return false;
+
+		utilization += density - oldDensity;
+		thread.realTimeState = new RealTimeState(thread, period, deadline,
+				budget);
+
+		return true;
+	}
+
+	/**
+	 * Count the thread's job as met or missed, and set the deadline of its
+	 * next one. The next period starts one period after the last, even if that
+	 * time has already passed.
+	 */
+	public long finishPeriod(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		RealTimeState state = (RealTimeState) thread.realTimeState;
+		if (state == null)
+			return Machine.timer().getTime();
+
+		Machine.timer().finishJob(state.absoluteDeadline);
+
+		state.start += state.period;
+		state.absoluteDeadline = state.start + state.deadline;
+		state.jobStartTicks = thread.getRunTicks();
+
+		return state.start;
+	}
+
+	private class DeadlineQueue extends ThreadQueue {
+		DeadlineQueue(ThreadQueue bestEffortQueue, boolean transferPriority) {
+			this.bestEffortQueue = bestEffortQueue;
+			this.transferPriority = transferPriority;
+		}
+
+		/**
+		 * Add the thread to the heap if it is a real-time thread within its
+		 * budget, or else to the best-effort queue.
+		 * 
+		 * @param thread the thread to add to the queue.
+		 */
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			RealTimeState state = (RealTimeState) thread.realTimeState;
+
+			if (state != null && !state.overrun()) {
+				state.key = state.absoluteDeadline;
+				state.sequence = numWaits++;
+				heap.add(state);
+			}
+			else {
+				bestEffortQueue.waitForAccess(thread);
+			}
+		}
+
+		/**
+		 * Remove the waiting real-time thread with the earliest deadline, or
+		 * if there is none, the next best-effort thread. A real-time thread
+		 * also becomes the owner of the best-effort queue, so that the threads
+		 * waiting there donate to it instead of the previous owner.
+		 * 
+		 * @return the chosen thread, or <tt>null</tt> if the queue is empty.
+		 */
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (!heap.isEmpty()) {
+				KThread thread = heap.poll().thread;
+				if (transferPriority)
+					bestEffortQueue.acquire(thread);
+				return thread;
+			}
+
+			return bestEffortQueue.nextThread();
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			bestEffortQueue.acquire(thread);
+		}
+
+		/**
+		 * Print out the real-time threads, in no particular order, and then
+		 * the best-effort queue.
+		 */
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (RealTimeState state : heap)
+				System.out.print(state.thread + "(" + state.key + ") ");
+
+			bestEffortQueue.print();
+		}
+
+		private ThreadQueue bestEffortQueue;
+
+		/**
+		 * <tt>true</tt> if the best-effort queue transfers priority to its
+		 * owner.
+		 */
+		private boolean transferPriority;
+
+		/** The waiting real-time threads, by deadline. */
+		private PriorityQueue<RealTimeState> heap =
+			new PriorityQueue<RealTimeState>(initialCapacity, deadlineOrder);
+	}
+
+	/**
+	 * The real-time state of a thread: its parameters, and the start and
+	 * deadline of its current period.
+	 * 
+	 * @see nachos.threads.KThread#realTimeState
+	 */
+	private static class RealTimeState {
+		RealTimeState(KThread thread, long period, long deadline, long budget) {
+			this.thread = thread;
+			this.period = period;
+			this.deadline = deadline;
+			this.budget = budget;
+
+			density = (double) budget / deadline;
+
+			start = Machine.timer().getTime();
+			absoluteDeadline = start + deadline;
+			jobStartTicks = thread.getRunTicks();
+		}
+
+		/**
+		 * Return whether the thread has run longer than its budget in this
+		 * period.
+		 */
+		boolean overrun() {
+			return thread.getRunTicks() - jobStartTicks > budget;
+		}
+
+		KThread thread;
+
+		long period, deadline, budget;
+
+		double density;
+
+		/** The start and deadline of the current period. */
+		long start, absoluteDeadline;
+
+		/** The thread's run ticks at the start of its current job. */
+		long jobStartTicks;
+
+		/** The deadline when the thread was last queued. */
+		long key, sequence;
+	}
+
+	private static final Comparator<RealTimeState> deadlineOrder =
+		new Comparator<RealTimeState>() {
+			public int compare(RealTimeState a, RealTimeState b) {
+				if (a.key != b.key)
+					return Long.compare(a.key, b.key);
+				else
+					return Long.compare(a.sequence, b.sequence);
+			}
+		};
+
+	private Scheduler bestEffort;
+
+	/**
+	 * <tt>true</tt> if the best-effort scheduler transfers priority. Only a
+	 * <tt>PriorityScheduler</tt> does; the others assert that nothing is
+	 * waiting when a queue is acquired.
+	 */
+	private boolean donating;
+
+	private double maxUtilization;
+
+	/** The total density of the admitted real-time threads. */
+	private double utilization = 0;
+
+	/** The number of times a real-time thread has begun waiting. */
+	private long numWaits = 0;
+
+	/** Rounding allowed when densities are added up. */
+	private static final double epsilon = 1e-9;
+
+	private static final String defaultBestEffort =
+		"nachos.threads.RoundRobinScheduler";
+
+	private static final double defaultMaxUtilization = 0.9;
+
+	private static final int initialCapacity = 16;
+}
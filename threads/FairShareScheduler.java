@@ -0,0 +1,389 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Comparator;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+
+/**
+ * A scheduler that shares the processor fairly between groups of threads,
+ * and then between the threads of each group, in proportion to their
+ * weights.
+ * 
+ * <p>
+ * Each thread has a weight, its priority, and a <i>virtual runtime</i>: the
+ * ticks it has run, divided by its weight. Each group has a virtual runtime of
+ * its own, charged with the ticks run by all of its threads. The next thread
+ * to receive access is the waiting thread with the least virtual runtime in
+ * the waiting group with the least virtual runtime. Ties go to whichever was
+ * queued first.
+ * 
+ * <p>
+ * The threads of a <tt>UserProcess</tt> form one group, so a process with
+ * many threads gets no more of the processor than a process with one. Every
+ * process has the default weight. A kernel thread is a group of its own, with
+ * the thread's weight.
+ * 
+ * <p>
+ * A thread is charged for the ticks it ran, as counted by <tt>KThread</tt>
+ * from the simulated clock, each time it starts waiting on any queue. A group
+ * that starts waiting on a queue behind the greatest virtual runtime chosen
+ * there so far is placed at that virtual runtime in the queue, and a thread
+ * behind the greatest virtual runtime chosen from its group there is placed
+ * at that one, so that a new process, or a thread that has been blocked,
+ * cannot save up time and then monopolize the processor. These floors belong
+ * to the queue: the virtual runtimes themselves are not changed, so what
+ * happens on one queue does not move a thread or group on another.
+ * 
+ * <p>
+ * Each queue keeps its groups, and each group its threads, in a red-black
+ * tree ordered by virtual runtime, so choosing a thread and adding one both
+ * take <i>O</i>(log <i>n</i>) time. A group's place in a queue is updated
+ * whenever one of its threads is queued there. Priority is not transferred.
+ */
+public class FairShareScheduler extends Scheduler {
+	/**
+	 * Allocate a new fair-share scheduler.
+	 */
+	public FairShareScheduler() {
+	}
+
+	/**
+	 * Allocate a new fair-share thread queue.
+	 * 
+	 * @param transferPriority ignored. This scheduler does not donate
+	 * priority.
+	 * @return a new fair-share thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new FairQueue();
+	}
+
+	/**
+	 * Return the weight of the specified thread.
+	 */
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).weight;
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return getPriority(thread);
+	}
+
+	/**
+	 * Set the weight of the specified thread. It is first charged for the
+	 * ticks it has run at its old weight. If it is waiting, it keeps its place
+	 * until it is next queued.
+	 */
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= weightMinimum && priority <= weightMaximum);
+
+		ThreadState state = getThreadState(thread);
+		state.account();
+		state.weight = priority;
+
+		if (state.ownGroup)
+			state.group.weight = priority;
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == weightMaximum)
+			ret = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == weightMinimum)
+			ret = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	/**
+	 * The default weight of a thread, and the weight of every process.
+	 */
+	public static final int weightDefault = 1024;
+
+	/**
+	 * The least weight a thread can have.
+	 */
+	public static final int weightMinimum = 1;
+
+	/**
+	 * The greatest weight a thread can have.
+	 */
+	public static final int weightMaximum = 1 << 16;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 * 
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * Return the state of the specified scheduling group, creating it if
+	 * necessary. Groups are only weakly referenced, so the state of a process
+	 * that has gone is discarded.
+	 */
+	private GroupState getGroupState(Object group) {
+		GroupState state = groups.get(group);
+		if (state == null) {
+			state = new GroupState();
+			groups.put(group, state);
+		}
+
+		return state;
+	}
+
+	private class FairQueue extends ThreadQueue {
+		/**
+		 * Charge the thread for the time it has run, then add it to its
+		 * group's tree, adding the group to this queue if it is not already
+		 * waiting here.
+		 * 
+		 * @param thread the thread to add to the queue.
+		 */
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			state.account();
+
+			GroupState group = state.group;
+			GroupNode node = nodes.get(group);
+			if (node == null) {
+				node = new GroupNode();
+				nodes.put(group, node);
+			}
+			else if (!node.threads.isEmpty()) {
+				tree.remove(node);
+			}
+
+			// only the places in this queue are moved up; the virtual
+			// runtimes still count unchanged in every other queue
+			node.key = Math.max(group.vruntime, floorVruntime);
+			node.sequence = numInsertions++;
+			tree.add(node);
+
+			state.key = Math.max(state.vruntime, node.floorVruntime);
+			state.sequence = numInsertions++;
+			node.threads.add(state);
+
+			size++;
+		}
+
+		/**
+		 * Remove the thread with the least virtual runtime from the group
+		 * with the least virtual runtime.
+		 * 
+		 * @return the chosen thread, or <tt>null</tt> if the queue is empty.
+		 */
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (size == 0)
+				return null;
+
+			GroupNode node = tree.first();
+			ThreadState state = node.threads.pollFirst();
+
+			if (node.threads.isEmpty())
+				tree.pollFirst();
+
+			floorVruntime = Math.max(floorVruntime, node.key);
+			node.floorVruntime = Math.max(node.floorVruntime, state.key);
+
+			size--;
+			return state.thread;
+		}
+
+		/**
+		 * The specified thread has received exclusive access, without using
+		 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Assert that no
+		 * threads are waiting for access.
+		 */
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			Lib.assertTrue(size == 0);
+		}
+
+		/**
+		 * Print out the contents of the queue, in the order they would be
+		 * chosen if no more were added.
+		 */
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (GroupNode node : tree) {
+				for (ThreadState state : node.threads)
+					System.out.print(state.thread + " ");
+			}
+		}
+
+		/** The groups with waiting threads, by virtual runtime. */
+		private TreeSet<GroupNode> tree = new TreeSet<GroupNode>(nodeOrder);
+
+		/**
+		 * The node of each group that has waited here. A node stays after its
+		 * last thread is chosen, to keep its floor, until the group is gone.
+		 * Only the nodes with waiting threads are in <tt>tree</tt>.
+		 */
+		private WeakHashMap<GroupState, GroupNode> nodes =
+			new WeakHashMap<GroupState, GroupNode>();
+
+		/**
+		 * The greatest virtual runtime of a group chosen here, below which no
+		 * group is placed.
+		 */
+		private long floorVruntime = 0;
+
+		private int size = 0;
+	}
+
+	/**
+	 * A group's place on a queue: the group's virtual runtime when it was
+	 * placed in the queue's tree, its waiting threads, and the floor for
+	 * them. The node does not refer to the group, so that it does not keep
+	 * the group alive in the queue's weak map.
+	 */
+	private static class GroupNode {
+		long key, sequence;
+
+		/**
+		 * The greatest virtual runtime of a thread of the group chosen on
+		 * this queue, below which none of its threads is placed.
+		 */
+		long floorVruntime = 0;
+
+		TreeSet<ThreadState> threads = new TreeSet<ThreadState>(threadOrder);
+	}
+
+	/**
+	 * The scheduling state of a group: its weight and virtual runtime.
+	 */
+	private static class GroupState {
+		int weight = weightDefault;
+
+		long vruntime = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread: its weight, its group, and its virtual
+	 * runtime.
+	 */
+	protected class ThreadState {
+		/**
+		 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+		 * specified thread.
+		 * 
+		 * @param thread the thread this state belongs to.
+		 */
+		public ThreadState(KThread thread) {
+			this.thread = thread;
+
+			Object key = thread.getSchedulingGroup();
+			group = getGroupState(key);
+			ownGroup = (key == thread);
+
+			lastRunTicks = thread.getRunTicks();
+		}
+
+		/**
+		 * Charge the associated thread and its group for the ticks it has run
+		 * since it was last charged.
+		 */
+		void account() {
+			long runTicks = thread.getRunTicks();
+			long ticks = runTicks - lastRunTicks;
+			lastRunTicks = runTicks;
+
+			vruntime += ticks * vruntimeScale / weight;
+			group.vruntime += ticks * vruntimeScale / group.weight;
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+
+		/** The weight of the associated thread. */
+		protected int weight = weightDefault;
+
+		/** The virtual runtime of the associated thread. */
+		protected long vruntime = 0;
+
+		private GroupState group;
+
+		/** Whether the associated thread is the only one in its group. */
+		private boolean ownGroup;
+
+		/**
+		 * The thread's place in the queue it last waited on: its virtual
+		 * runtime, or the floor of its group there if that is greater.
+		 */
+		private long key, sequence;
+
+		/** The thread's run ticks when it was last charged. */
+		private long lastRunTicks;
+	}
+
+	private static final Comparator<GroupNode> nodeOrder =
+		new Comparator<GroupNode>() {
+			public int compare(GroupNode a, GroupNode b) {
+				if (a.key != b.key)
+					return Long.compare(a.key, b.key);
+				else
+					return Long.compare(a.sequence, b.sequence);
+			}
+		};
+
+	private static final Comparator<ThreadState> threadOrder =
+		new Comparator<ThreadState>() {
+			public int compare(ThreadState a, ThreadState b) {
+				if (a.key != b.key)
+					return Long.compare(a.key, b.key);
+				else
+					return Long.compare(a.sequence, b.sequence);
+			}
+		};
+
+	/** The state of each scheduling group. */
+	private WeakHashMap<Object, GroupState> groups =
+		new WeakHashMap<Object, GroupState>();
+
+	/** The number of insertions into any tree, to keep ties FIFO. */
+	private long numInsertions = 0;
+
+	/** The virtual runtime of one tick at weight one. */
+	private static final long vruntimeScale = 1L << 20;
+}
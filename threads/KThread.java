@@ -2,6 +2,10 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+
 /**
  * A KThread is a thread that can be used to execute Nachos kernel code. Nachos
  * allows multiple threads to run concurrently.
@@ -64,6 +68,7 @@ public class KThread {
 			currentThread = this;
 			tcb = TCB.currentTCB();
 			name = "main";
+			liveThreads.add(this);
 			restoreState();
 
 			createIdleThread();
@@ -160,6 +165,7 @@ public class KThread {
 			}
 		});
 
+		liveThreads.add(this);
 		ready();
 
 		Machine.interrupt().restore(intStatus);
@@ -198,11 +204,23 @@ public class KThread {
 
 		Machine.autoGrader().finishingCurrentThread();
 
+		if (currentThread.realTimeState != null)
+			ThreadedKernel.scheduler.setRealTime(currentThread, 0, 0, 0);
+
 		Lib.assertTrue(toBeDestroyed == null);
 		toBeDestroyed = currentThread;
 
+		currentThread.chargeTicks();
 		currentThread.status = statusFinished;
 
+		liveThreads.remove(currentThread);
+		numFinishedThreads++;
+		finishedRunTicks += currentThread.runTicks;
+		finishedReadyTicks += currentThread.readyTicks;
+		finishedBlockedTicks += currentThread.blockedTicks;
+		finishedVoluntarySwitches += currentThread.voluntarySwitches;
+		finishedInvoluntarySwitches += currentThread.involuntarySwitches;
+
 		// If this thread is child of a parent
 		if (currentThread.parentThread != null) {
 			// Machine.interrupt().disable();
@@ -215,6 +233,44 @@ public class KThread {
 		sleep();
 	}
 
+	/**
+	 * Make this thread a periodic real-time thread, if the scheduler admits
+	 * it. Each period, the thread should run for at most <tt>budget</tt>
+	 * ticks and then call <tt>waitForNextPeriod()</tt>, within
+	 * <tt>deadline</tt> ticks of the start of the period. Its first period
+	 * starts now. A period of 0 makes this an ordinary thread again.
+	 * 
+	 * @param period the ticks between the starts of consecutive periods.
+	 * @param deadline the ticks from the start of a period to its deadline.
+	 * @param budget the most ticks this thread runs each period.
+	 * @return <tt>true</tt> if the scheduler admitted this thread.
+	 * 
+	 * @see nachos.threads.Scheduler#setRealTime
+	 */
+	public boolean setRealTime(long period, long deadline, long budget) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		boolean admitted = ThreadedKernel.scheduler.setRealTime(this, period,
+				deadline, budget);
+
+		Machine.interrupt().restore(intStatus);
+		return admitted;
+	}
+
+	/**
+	 * Finish the current thread's job for this period, and sleep until its
+	 * next period starts. Returns at once if the current thread is not a
+	 * real-time thread.
+	 */
+	public static void waitForNextPeriod() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		long start = ThreadedKernel.scheduler.finishPeriod(currentThread);
+		ThreadedKernel.alarm.waitUntil(start - Machine.timer().getTime());
+
+		Machine.interrupt().restore(intStatus);
+	}
+
 	/**
 	 * Relinquish the CPU if any other thread is ready to run. If so, put the
 	 * current thread on the ready queue, so that it will eventually be
@@ -238,6 +294,9 @@ public class KThread {
 
 		boolean intStatus = Machine.interrupt().disable();
 
+		// a yield from an interrupt handler is a preemption
+		preempting = !intStatus;
+
 		currentThread.ready();
 
 		runNextThread();
@@ -261,8 +320,10 @@ public class KThread {
 
 		Lib.assertTrue(Machine.interrupt().disabled());
 
-		if (currentThread.status != statusFinished)
+		if (currentThread.status != statusFinished) {
+			currentThread.chargeTicks();
 			currentThread.status = statusBlocked;
+		}
 
 		runNextThread();
 	}
@@ -277,9 +338,16 @@ public class KThread {
 		Lib.assertTrue(Machine.interrupt().disabled());
 		Lib.assertTrue(status != statusReady);
 
+		chargeTicks();
 		status = statusReady;
-		if (this != idleThread)
+		if (this != idleThread) {
 			readyQueue.waitForAccess(this);
+			numReadyThreads++;
+			if (currentThread == idleThread)
+				readiedWhileIdle = true;
+			else if (this != currentThread)
+				requestPreemption();
+		}
 
 		Machine.autoGrader().readyThread(this);
 	}
@@ -319,14 +387,34 @@ public class KThread {
 	 * 
 	 * <p>
 	 * Note that <tt>ready()</tt> never adds the idle thread to the ready set.
+	 * 
+	 * <p>
+	 * If <tt>KThread.idleFastForward</tt> is set, the idle thread skips
+	 * simulated time ahead to the next pending interrupt, instead of
+	 * advancing it one kernel tick per <tt>yield()</tt>.
 	 */
 	private static void createIdleThread() {
 		Lib.assertTrue(idleThread == null);
 
+		final boolean fastForward = Config.getBoolean(
+				"KThread.idleFastForward", false);
+
 		idleThread = new KThread(new Runnable() {
 			public void run() {
-				while (true)
+				while (true) {
+					if (fastForward) {
+						Machine.interrupt().disable();
+
+						// a thread readied since the last yield must run first
+						if (!readiedWhileIdle)
+							Machine.interrupt().idle();
+						readiedWhileIdle = false;
+
+						Machine.interrupt().enable();
+					}
+
 					KThread.yield();
+				}
 			}
 		});
 		idleThread.setName("idle");
@@ -336,6 +424,31 @@ public class KThread {
 		idleThread.fork();
 	}
 
+	/**
+	 * Change <tt>ThreadedKernel.scheduler</tt> to the specified scheduler, and
+	 * replace the ready queue with a new one from it. No other thread may be
+	 * ready to run. The current thread leaves the real-time class of the old
+	 * scheduler, and the scheduling state of the current thread and the idle
+	 * thread, which belongs to the old scheduler, is discarded.
+	 * 
+	 * @param scheduler the new scheduler.
+	 */
+	static void setScheduler(Scheduler scheduler) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		Lib.assertTrue(numReadyThreads == 0);
+
+		if (currentThread.realTimeState != null)
+			ThreadedKernel.scheduler.setRealTime(currentThread, 0, 0, 0);
+
+		currentThread.schedulingState = null;
+		idleThread.schedulingState = null;
+
+		ThreadedKernel.scheduler = scheduler;
+
+		readyQueue = scheduler.newThreadQueue(false);
+		readyQueue.acquire(currentThread);
+	}
+
 	/**
 	 * Determine the next thread to run, then dispatch the CPU to the thread
 	 * using <tt>run()</tt>.
@@ -344,6 +457,8 @@ public class KThread {
 		KThread nextThread = readyQueue.nextThread();
 		if (nextThread == null)
 			nextThread = idleThread;
+		else
+			numReadyThreads--;
 
 		nextThread.run();
 	}
@@ -374,6 +489,14 @@ public class KThread {
 
 		currentThread.saveState();
 
+		if (this != currentThread) {
+			if (currentThread.status == statusReady && preempting)
+				currentThread.involuntarySwitches++;
+			else if (currentThread.status != statusFinished)
+				currentThread.voluntarySwitches++;
+		}
+		preempting = false;
+
 		Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
 				+ " to: " + toString());
 
@@ -397,8 +520,11 @@ public class KThread {
 
 		Machine.autoGrader().runningThread(this);
 
+		chargeTicks();
 		status = statusRunning;
 
+		requestPreemption();
+
 		if (toBeDestroyed != null) {
 			toBeDestroyed.tcb.destroy();
 			toBeDestroyed.tcb = null;
@@ -406,6 +532,146 @@ public class KThread {
 		}
 	}
 
+	/**
+	 * If the timer is tickless and other threads are waiting to run, make
+	 * sure it interrupts within a time slice, so that the current thread can
+	 * be preempted.
+	 */
+	private static void requestPreemption() {
+		if (numReadyThreads > 0)
+			Machine.timer().requestInterrupt(Machine.timer().getTime()
+					+ Stats.TimerTicks);
+	}
+
+	/**
+	 * Charge the time since this thread's last change of state to its current
+	 * state. Called just before every change of state.
+	 */
+	private void chargeTicks() {
+		long now = Machine.timer().getTime();
+
+		if (status == statusRunning)
+			runTicks += now - stateSince;
+		else if (status == statusReady)
+			readyTicks += now - stateSince;
+		else if (status == statusBlocked)
+			blockedTicks += now - stateSince;
+
+		stateSince = now;
+	}
+
+	/**
+	 * Return the number of ticks this thread has spent running.
+	 * 
+	 * @return the ticks spent running, up to the current time.
+	 */
+	public long getRunTicks() {
+		return runTicks + ticksSinceChange(statusRunning);
+	}
+
+	/**
+	 * Return the number of ticks this thread has spent on the ready queue,
+	 * waiting to run.
+	 * 
+	 * @return the ticks spent ready, up to the current time.
+	 */
+	public long getReadyTicks() {
+		return readyTicks + ticksSinceChange(statusReady);
+	}
+
+	/**
+	 * Return the number of ticks this thread has spent blocked.
+	 * 
+	 * @return the ticks spent blocked, up to the current time.
+	 */
+	public long getBlockedTicks() {
+		return blockedTicks + ticksSinceChange(statusBlocked);
+	}
+
+	/**
+	 * Return the number of times this thread gave up the processor by
+	 * blocking or yielding.
+	 * 
+	 * @return the number of voluntary context switches.
+	 */
+	public int getVoluntarySwitches() {
+		return voluntarySwitches;
+	}
+
+	/**
+	 * Return the number of times this thread was preempted: made to yield by
+	 * an interrupt handler, such as the timer's.
+	 * 
+	 * @return the number of involuntary context switches.
+	 */
+	public int getInvoluntarySwitches() {
+		return involuntarySwitches;
+	}
+
+	/**
+	 * Return the group this thread is scheduled with. Schedulers that share
+	 * the processor between groups, rather than between threads, treat
+	 * threads with the same group as one. A kernel thread is a group of its
+	 * own.
+	 * 
+	 * @return the scheduling group of this thread.
+	 */
+	protected Object getSchedulingGroup() {
+		return this;
+	}
+
+	private long ticksSinceChange(int state) {
+		if (status != state)
+			return 0;
+
+		return Machine.timer().getTime() - stateSince;
+	}
+
+	/**
+	 * Print the time each live thread has spent running, ready and blocked,
+	 * and its context switches, busiest threads first, followed by the totals
+	 * of the threads that have finished.
+	 */
+	public static void printStats() {
+		KThread[] threads = liveThreads.toArray(new KThread[0]);
+
+		Arrays.sort(threads, new Comparator<KThread>() {
+			public int compare(KThread a, KThread b) {
+				return Long.compare(b.getRunTicks(), a.getRunTicks());
+			}
+		});
+
+		System.out.println("Threads:");
+		System.out.println(Lib.pad("thread", -25) + Lib.pad("run", 13)
+				+ Lib.pad("ready", 13) + Lib.pad("blocked", 13)
+				+ Lib.pad("vol", 9) + Lib.pad("invol", 9));
+
+		for (int i = 0; i < threads.length && i < maxStatsRows; i++) {
+			KThread thread = threads[i];
+
+			System.out.println(Lib.pad(thread.toString(), -25)
+					+ Lib.pad(thread.getRunTicks(), 13)
+					+ Lib.pad(thread.getReadyTicks(), 13)
+					+ Lib.pad(thread.getBlockedTicks(), 13)
+					+ Lib.pad(thread.getVoluntarySwitches(), 9)
+					+ Lib.pad(thread.getInvoluntarySwitches(), 9));
+		}
+
+		if (threads.length > maxStatsRows)
+			System.out.println("(" + (threads.length - maxStatsRows)
+					+ " more threads)");
+
+		if (numFinishedThreads > 0)
+			System.out.println(Lib.pad("(" + numFinishedThreads
+					+ " finished)", -25)
+					+ Lib.pad(finishedRunTicks, 13)
+					+ Lib.pad(finishedReadyTicks, 13)
+					+ Lib.pad(finishedBlockedTicks, 13)
+					+ Lib.pad(finishedVoluntarySwitches, 9)
+					+ Lib.pad(finishedInvoluntarySwitches, 9));
+	}
+
+
 	/**
 	 * Prepare this thread to give up the processor. Kernel threads do not need
 	 * to do anything here.
@@ -440,6 +706,14 @@ public class KThread {
 	 */
 	public Object schedulingState = null;
 
+	/**
+	 * Additional state used by schedulers with a real-time class, kept apart
+	 * from <tt>schedulingState</tt> so that the best-effort class can use that.
+	 * 
+	 * @see nachos.threads.EDFScheduler
+	 */
+	public Object realTimeState = null;
+
 	private static final int statusNew = 0;
 
 	private static final int statusReady = 1;
@@ -484,6 +758,97 @@ public class KThread {
 
 	private static KThread idleThread = null;
 
+	/** The number of threads in the ready queue. */
+	private static int numReadyThreads = 0;
+
+	/** Set when the idle thread makes another thread ready. */
+	private static boolean readiedWhileIdle = false;
+
+	/** Set while the current thread is being preempted. */
+	private static boolean preempting = false;
+
+	/**
+	 * The threads that have been forked and have not finished, for the
+	 * statistics printed at halt.
+	 */
+	private static HashSet<KThread> liveThreads = new HashSet<KThread>();
+
+	/** The totals of the threads that have finished. */
+	private static long numFinishedThreads = 0;
+	private static long finishedRunTicks = 0, finishedReadyTicks = 0,
+			finishedBlockedTicks = 0;
+	private static long finishedVoluntarySwitches = 0,
+			finishedInvoluntarySwitches = 0;
+
+	/** The most threads listed in the statistics. */
+	private static final int maxStatsRows = 40;
+
+	/** The time of this thread's last change of state. */
+	private long stateSince = 0;
+
+	/** The ticks this thread has spent in each state, up to stateSince. */
+	private long runTicks = 0, readyTicks = 0, blockedTicks = 0;
+
+	private int voluntarySwitches = 0, involuntarySwitches = 0;
+
+
+	/**
+	 * Measure context switch latency: two threads yield to each other, as in
+	 * <tt>PingTest</tt>, and the switches per second of wall-clock time are
+	 * printed. Then measure the rate at which a thread can fork and join
+	 * children.
+	 */
+	public static void benchmark() {
+		final int yields = 100000;
+
+		Runnable pinger = new Runnable() {
+			public void run() {
+				for (int i = 0; i < yields; i++)
+					KThread.yield();
+			}
+		};
+
+		KThread forked = new KThread(pinger).setName("ping");
+
+		long start = System.nanoTime();
+		forked.fork();
+		pinger.run();
+		forked.join();
+		long elapsed = System.nanoTime() - start;
+
+		printSwitchRate("KThread yield ping-pong", 2 * yields, elapsed);
+
+		final int forks = 20000;
+
+		start = System.nanoTime();
+		for (int i = 0; i < forks; i++) {
+			KThread child = new KThread(new Runnable() {
+				public void run() {
+				}
+			});
+			child.fork();
+			child.join();
+		}
+		elapsed = System.nanoTime() - start;
+
+		System.out.println("KThread fork+join: " + forks + " threads in "
+				+ (elapsed / 1000000) + " ms, "
+				+ (forks * 1000000000L / Math.max(elapsed, 1)) + " threads/s");
+	}
+
+	/**
+	 * Print the rate of a context switch benchmark.
+	 * 
+	 * @param name the name of the benchmark.
+	 * @param switches the number of context switches made.
+	 * @param elapsed the wall-clock time taken, in nanoseconds.
+	 */
+	public static void printSwitchRate(String name, long switches, long elapsed) {
+		System.out.println(name + ": " + switches + " switches in "
+				+ (elapsed / 1000000) + " ms, "
+				+ (switches * 1000000000L / Math.max(elapsed, 1))
+				+ " switches/s");
+	}
 
 	public static void selfTest() {
 		Lib.debug(dbgThread, "Enter KThread.selfTest");
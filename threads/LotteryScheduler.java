@@ -2,9 +2,7 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.ArrayList;
 
 /**
  * A scheduler that chooses threads using a lottery.
@@ -25,6 +23,17 @@ import java.util.Iterator;
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking the
  * maximum).
+ * 
+ * <p>
+ * Each queue keeps the tickets of its waiting threads in a Fenwick tree, a
+ * binary indexed tree of partial sums, so that drawing the winner and
+ * changing the tickets of one waiter both take <i>O</i>(log <i>n</i>) time.
+ * A thread's effective tickets are its own plus the tickets of every thread
+ * waiting on a queue it owns that transfers tickets. Since tickets add, a
+ * change to one thread's effective tickets is passed up the chain of owners
+ * as a difference, and nothing is ever summed over all the waiters.
+ * Effective tickets are kept as <tt>long</tt>s, so totals may exceed
+ * <tt>Integer.MAX_VALUE</tt>.
  */
 public class LotteryScheduler extends PriorityScheduler {
 	/**
@@ -41,7 +50,487 @@ public class LotteryScheduler extends PriorityScheduler {
 	 * @return a new lottery thread queue.
 	 */
 	public ThreadQueue newThreadQueue(boolean transferPriority) {
-		// implement me
-		return null;
+		return new LotteryQueue(transferPriority);
+	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getTicketState(thread).tickets;
+	}
+
+	/**
+	 * Return the effective tickets of the specified thread, or
+	 * <tt>Integer.MAX_VALUE</tt> if it has more.
+	 */
+	public int getEffectivePriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return (int) Math.min(getTicketState(thread).effectiveTickets,
+				Integer.MAX_VALUE);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= ticketsMinimum
+				&& priority <= ticketsMaximum);
+
+		getTicketState(thread).setTickets(priority);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == ticketsMaximum)
+			ret = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == ticketsMinimum)
+			ret = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	/**
+	 * The fewest tickets a thread can have.
+	 */
+	public static final int ticketsMinimum = 1;
+
+	/**
+	 * The most tickets a thread can have.
+	 */
+	public static final int ticketsMaximum = Integer.MAX_VALUE;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 * 
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected TicketState getTicketState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new TicketState(thread);
+
+		return (TicketState) thread.schedulingState;
+	}
+
+	/**
+	 * Measure how fairly, and how fast, the lottery shares a ready queue,
+	 * compared to a round-robin queue. The thread that wins each draw goes
+	 * back on the queue at once, so every draw is held among all the
+	 * threads. Each thread is only queued, never forked.
+	 */
+	public static void benchmark() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		final int draws = 1000000;
+
+		int[][] ticketSets = { { 1, 2, 3, 4, 10 },
+				{ ticketsMaximum, ticketsMaximum / 2, ticketsMaximum / 4, 1 } };
+
+		System.out.println("LotteryScheduler fairness (" + draws + " draws):");
+		System.out.println("      tickets  expected %   lottery %  "
+				+ "round-robin %");
+
+		for (int s = 0; s < ticketSets.length; s++) {
+			int[] tickets = ticketSets[s];
+
+			long[] lottery = countWins(new LotteryScheduler(), tickets, draws,
+					true);
+			long[] roundRobin = countWins(new RoundRobinScheduler(), tickets,
+					draws, true);
+
+			long total = 0;
+			for (int i = 0; i < tickets.length; i++)
+				total += tickets[i];
+
+			for (int i = 0; i < tickets.length; i++) {
+				System.out.println(Lib.pad(Long.toString(tickets[i]), 13)
+						+ Lib.pad(percent(tickets[i], total), 12)
+						+ Lib.pad(percent(lottery[i], draws), 12)
+						+ Lib.pad(percent(roundRobin[i], draws), 15));
+			}
+		}
+
+		int[] sizes = { 10, 100, 1000, 10000 };
+
+		System.out.println("LotteryScheduler throughput:");
+		System.out.println("  threads  lottery ns/op  round-robin ns/op");
+
+		for (int i = 0; i < sizes.length; i++) {
+			int[] tickets = new int[sizes[i]];
+			for (int j = 0; j < sizes[i]; j++)
+				tickets[j] = 1 + Lib.random(100);
+
+			// the first round warms up the JIT
+			long lotteryTime = 0, roundRobinTime = 0;
+			for (int round = 0; round < 2; round++) {
+				long start = System.nanoTime();
+				countWins(new LotteryScheduler(), tickets, draws, false);
+				lotteryTime = (System.nanoTime() - start) / draws;
+
+				start = System.nanoTime();
+				countWins(new RoundRobinScheduler(), tickets, draws, false);
+				roundRobinTime = (System.nanoTime() - start) / draws;
+			}
+
+			System.out.println(Lib.pad(Integer.toString(sizes[i]), 9)
+					+ Lib.pad(Long.toString(lotteryTime), 15)
+					+ Lib.pad(Long.toString(roundRobinTime), 19));
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Put threads with the specified tickets on a queue, and hold the
+	 * specified number of draws, putting each winner back on the queue.
+	 * 
+	 * @return the number of draws each thread won, if <tt>count</tt> is
+	 * <tt>true</tt>.
+	 */
+	private static long[] countWins(Scheduler scheduler, int[] tickets,
+			int draws, boolean count) {
+		ThreadQueue queue = scheduler.newThreadQueue(false);
+
+		KThread[] threads = new KThread[tickets.length];
+		for (int i = 0; i < tickets.length; i++) {
+			threads[i] = new KThread();
+			if (scheduler instanceof LotteryScheduler)
+				scheduler.setPriority(threads[i], tickets[i]);
+
+			queue.waitForAccess(threads[i]);
+		}
+
+		long[] wins = new long[tickets.length];
+
+		for (int i = 0; i < draws; i++) {
+			KThread winner = queue.nextThread();
+			queue.waitForAccess(winner);
+
+			if (count) {
+				int j = 0;
+				while (threads[j] != winner)
+					j++;
+				wins[j]++;
+			}
+		}
+
+		return wins;
+	}
+
+	private static String percent(long count, long total) {
+		long hundredths = Math.round((double) count * 10000 / total);
+		return (hundredths / 100) + "." + ((hundredths % 100) / 10)
+				+ (hundredths % 10);
+	}
+
+
+	/**
+	 * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+	 */
+	protected class LotteryQueue extends TicketQueue {
+		LotteryQueue(boolean transferPriority) {
+			super(transferPriority);
+
+			capacity = initialCapacity;
+			tree = new long[capacity + 1];
+			weights = new long[capacity];
+			slots = new TicketState[capacity];
+			free = new int[capacity];
+
+			for (int i = 0; i < capacity; i++)
+				free[i] = capacity - 1 - i;
+			numFree = capacity;
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getTicketState(thread).waitForAccess(this);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getTicketState(thread).acquire(this);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (owner != null)
+				owner.release(this);
+
+			TicketState next = pickNextThread();
+			if (next == null)
+				return null;
+
+			remove(next);
+			next.acquire(this);
+
+			return next.thread;
+		}
+
+		/**
+		 * Hold a lottery among the waiting threads, without modifying the
+		 * state of this queue.
+		 * 
+		 * @return the winner, or <tt>null</tt> if no threads are waiting.
+		 */
+		protected TicketState pickNextThread() {
+			if (capacity - numFree == 0)
+				return null;
+
+			long total = getTotalTickets();
+			long ticket = (total <= Integer.MAX_VALUE) ? Lib
+					.random((int) total) : (long) (Lib.random() * total);
+
+			// descend the tree to the slot holding the winning ticket
+			int position = 0;
+			for (int step = Integer.highestOneBit(capacity); step > 0; step >>= 1) {
+				if (position + step <= capacity
+						&& tree[position + step] <= ticket) {
+					position += step;
+					ticket -= tree[position];
+				}
+			}
+
+			return slots[position];
+		}
+
+		/**
+		 * Return the total effective tickets of the waiting threads.
+		 * 
+		 * @return the sum of the waiting threads' effective tickets.
+		 */
+		protected long getTotalTickets() {
+			long total = 0;
+			for (int i = capacity; i > 0; i -= i & -i)
+				total += tree[i];
+			return total;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < capacity; i++) {
+				if (slots[i] != null)
+					System.out.print(slots[i].thread + " ");
+			}
+		}
+
+		/**
+		 * Give a thread a slot, and add its tickets to the tree.
+		 */
+		void insert(TicketState state) {
+			if (numFree == 0)
+				grow();
+
+			int slot = free[--numFree];
+			slots[slot] = state;
+			state.slot = slot;
+
+			add(slot, state.effectiveTickets);
+		}
+
+		/**
+		 * Take a thread's tickets out of the tree, and free its slot.
+		 */
+		void remove(TicketState state) {
+			int slot = state.slot;
+			Lib.assertTrue(slots[slot] == state);
+
+			add(slot, -weights[slot]);
+			slots[slot] = null;
+			free[numFree++] = slot;
+
+			state.waitQueue = null;
+			state.slot = -1;
+		}
+
+		/**
+		 * Add to the tickets in a slot.
+		 */
+		void add(int slot, long delta) {
+			weights[slot] += delta;
+
+			for (int i = slot + 1; i <= capacity; i += i & -i)
+				tree[i] += delta;
+		}
+
+		private void grow() {
+			int oldCapacity = capacity;
+			capacity *= 2;
+
+			long[] newWeights = new long[capacity];
+			System.arraycopy(weights, 0, newWeights, 0, oldCapacity);
+			weights = newWeights;
+
+			TicketState[] newSlots = new TicketState[capacity];
+			System.arraycopy(slots, 0, newSlots, 0, oldCapacity);
+			slots = newSlots;
+
+			// rebuild the tree in linear time
+			tree = new long[capacity + 1];
+			for (int i = 1; i <= capacity; i++) {
+				tree[i] += weights[i - 1];
+				int parent = i + (i & -i);
+				if (parent <= capacity)
+					tree[parent] += tree[i];
+			}
+
+			// every slot was in use, so the new ones are all free
+			free = new int[capacity];
+			for (int i = 0; i < oldCapacity; i++)
+				free[i] = capacity - 1 - i;
+			numFree = oldCapacity;
+		}
+
+		TicketHolder getOwner() {
+			return owner;
+		}
+
+		void addWaitingTickets(TicketHolder state, long delta) {
+			add(((TicketState) state).slot, delta);
+		}
+
+		/** The thread that has access, if this queue transfers tickets. */
+		protected TicketState owner = null;
+
+		private int capacity;
+
+		/** The Fenwick tree of tickets, indexed by slot plus one. */
+		private long[] tree;
+
+		/** The tickets in each slot, and the thread holding it. */
+		private long[] weights;
+		private TicketState[] slots;
+
+		/** The slots not in use. */
+		private int[] free;
+		private int numFree;
 	}
+
+	/**
+	 * The scheduling state of a thread: its tickets, its effective tickets,
+	 * the queues it owns and the queue it's waiting for, if any.
+	 * 
+	 * @see nachos.threads.KThread#schedulingState
+	 */
+	protected class TicketState extends TicketHolder {
+		/**
+		 * Allocate a new <tt>TicketState</tt> object and associate it with
+		 * the specified thread.
+		 * 
+		 * @param thread the thread this state belongs to.
+		 */
+		public TicketState(KThread thread) {
+			this.thread = thread;
+
+			tickets = priorityDefault;
+			effectiveTickets = priorityDefault;
+		}
+
+		/**
+		 * Set the tickets of the associated thread to the specified value.
+		 * 
+		 * @param tickets the new number of tickets.
+		 */
+		public void setTickets(int tickets) {
+			long delta = (long) tickets - this.tickets;
+			this.tickets = tickets;
+
+			addTickets(delta);
+		}
+
+		/**
+		 * Called when the associated thread begins waiting on the specified
+		 * queue.
+		 * 
+		 * @param waitQueue the queue that the associated thread is now waiting
+		 * on.
+		 */
+		public void waitForAccess(LotteryQueue waitQueue) {
+			Lib.assertTrue(this.waitQueue == null);
+
+			this.waitQueue = waitQueue;
+			waitQueue.insert(this);
+
+			if (waitQueue.transferPriority && waitQueue.owner != null)
+				waitQueue.owner.addTickets(effectiveTickets);
+		}
+
+		/**
+		 * Called when the associated thread has acquired access to whatever
+		 * is guarded by <tt>waitQueue</tt>.
+		 * 
+		 * @param waitQueue the queue the associated thread now owns.
+		 */
+		public void acquire(LotteryQueue waitQueue) {
+			if (!waitQueue.transferPriority)
+				return;
+
+			if (waitQueue.owner != null)
+				waitQueue.owner.release(waitQueue);
+
+			waitQueue.owner = this;
+			owned.add(waitQueue);
+
+			addTickets(waitQueue.getTotalTickets());
+		}
+
+		/**
+		 * Called when the associated thread gives up access to whatever is
+		 * guarded by <tt>waitQueue</tt>, so that it no longer receives the
+		 * tickets of the threads waiting there.
+		 * 
+		 * @param waitQueue the queue the associated thread no longer owns.
+		 */
+		void release(LotteryQueue waitQueue) {
+			owned.remove(waitQueue);
+			waitQueue.owner = null;
+
+			addTickets(-waitQueue.getTotalTickets());
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+
+		/** The tickets of the associated thread. */
+		protected int tickets;
+
+		/** The queue the associated thread is waiting on, if any. */
+		protected LotteryQueue waitQueue = null;
+
+		/** The queues owned by the associated thread that transfer tickets. */
+		protected ArrayList<LotteryQueue> owned = new ArrayList<LotteryQueue>();
+
+		/** The slot of this state in <tt>waitQueue</tt>. */
+		int slot = -1;
+
+		TicketQueue getWaitQueue() {
+			return waitQueue;
+		}
+	}
+
+	private static final int initialCapacity = 16;
 }
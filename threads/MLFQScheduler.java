@@ -0,0 +1,336 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * A multi-level feedback queue scheduler. Threads are kept in several FIFO
+ * queues, one per level, and the next thread to receive access is always the
+ * first thread in the highest non-empty level.
+ * 
+ * <p>
+ * Every thread starts at the highest level. Each level has a quantum: once a
+ * thread has run for that many ticks at its level, counted across any number
+ * of timer preemptions, it is demoted one level. A thread that blocks, for
+ * example reading from <tt>SynchConsole</tt> or sleeping in
+ * <tt>Alarm.waitUntil()</tt>, is instead raised one level, so interactive
+ * threads stay ahead of CPU-bound ones. Waiting for a <tt>Lock</tt>, or any
+ * queue that transfers priority, does not count as blocking, so a thread
+ * cannot climb by contending for locks. To prevent starvation, every thread is
+ * periodically moved back to the highest level.
+ * 
+ * <p>
+ * The quanta only decide when a thread changes level; they are not time
+ * slices. The running thread is still preempted at every timer interrupt, as
+ * with any other scheduler, and goes to the end of its level, so threads at
+ * the same level take turns every timer interval.
+ * 
+ * <p>
+ * The time a thread has run and whether it has blocked are taken from the
+ * accounting <tt>KThread</tt> keeps, each time the thread starts waiting on
+ * any queue. The quanta, from the highest level down, are set by the
+ * comma-separated list <tt>MLFQScheduler.quanta</tt>, and the interval
+ * between resets by <tt>MLFQScheduler.boostInterval</tt>, both in ticks.
+ * Priority is not transferred.
+ */
+public class MLFQScheduler extends Scheduler {
+	/**
+	 * Allocate a new multi-level feedback queue scheduler.
+	 */
+	public MLFQScheduler() {
+		String[] list = Config.getString("MLFQScheduler.quanta",
+				defaultQuanta).split(",");
+
+		quanta = new long[list.length];
+		for (int i = 0; i < list.length; i++) {
+			quanta[i] = Long.parseLong(list[i].trim());
+			Lib.assertTrue(quanta[i] > 0);
+		}
+
+		boostInterval = Config.getInteger("MLFQScheduler.boostInterval",
+				defaultBoostInterval);
+		Lib.assertTrue(boostInterval > 0);
+
+		nextBoost = boostInterval;
+	}
+
+	/**
+	 * Allocate a new multi-level feedback queue.
+	 * 
+	 * @param transferPriority <tt>true</tt> if this is a lock's queue. This
+	 * scheduler does not donate priority, but a thread that waits on such a
+	 * queue is not raised a level for it.
+	 * @return a new multi-level feedback queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new FeedbackQueue(transferPriority);
+	}
+
+	/**
+	 * Return the priority of the specified thread: the number of levels below
+	 * its own, so that higher priorities run first.
+	 */
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return quanta.length - 1 - getThreadState(thread).getLevel();
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return getPriority(thread);
+	}
+
+	/**
+	 * Move the specified thread to the level with the specified priority. If
+	 * it is waiting, it keeps its place until it is next queued.
+	 */
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= 0 && priority < quanta.length);
+
+		ThreadState state = getThreadState(thread);
+		state.getLevel();
+		state.level = quanta.length - 1 - priority;
+		state.usedTicks = 0;
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 * 
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * Start a new boost, if the boost interval has passed. Every thread moves
+	 * back to the highest level, but lazily: a queue moves its threads the
+	 * next time it is used, and a thread's state the next time its level is
+	 * read.
+	 */
+	private void checkBoost() {
+		long time = Machine.timer().getTime();
+		if (time < nextBoost)
+			return;
+
+		nextBoost = time + boostInterval;
+		boostEpoch++;
+	}
+
+	private class FeedbackQueue extends ThreadQueue {
+		FeedbackQueue(boolean transferPriority) {
+			this.transferPriority = transferPriority;
+
+			levels = new ArrayList<ArrayDeque<KThread>>(quanta.length);
+			for (int i = 0; i < quanta.length; i++)
+				levels.add(new ArrayDeque<KThread>());
+		}
+
+		/**
+		 * Charge the thread for the time it has run, then add it to the end
+		 * of its level.
+		 * 
+		 * @param thread the thread to append to the queue.
+		 */
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			checkBoost();
+			if (epoch != boostEpoch)
+				boost();
+
+			ThreadState state = getThreadState(thread);
+			state.account();
+
+			if (transferPriority)
+				state.waitingForLock = true;
+
+			levels.get(state.level).addLast(thread);
+			size++;
+		}
+
+		/**
+		 * Remove the first thread from the highest non-empty level.
+		 * 
+		 * @return the first thread on the queue, or <tt>null</tt> if the queue
+		 * is empty.
+		 */
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			checkBoost();
+			if (epoch != boostEpoch)
+				boost();
+
+			if (size == 0)
+				return null;
+
+			for (ArrayDeque<KThread> level : levels) {
+				if (!level.isEmpty()) {
+					size--;
+					return level.removeFirst();
+				}
+			}
+
+			Lib.assertNotReached();
+			return null;
+		}
+
+		/**
+		 * The specified thread has received exclusive access, without using
+		 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Assert that no
+		 * threads are waiting for access.
+		 */
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			Lib.assertTrue(size == 0);
+		}
+
+		/**
+		 * Print out the contents of the queue, highest level first.
+		 */
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < levels.size(); i++) {
+				for (KThread thread : levels.get(i))
+					System.out.print(thread + "(" + i + ") ");
+			}
+		}
+
+		/**
+		 * Move every waiting thread to the highest level, keeping their
+		 * order.
+		 */
+		private void boost() {
+			epoch = boostEpoch;
+
+			ArrayDeque<KThread> highest = levels.get(0);
+
+			for (int i = 1; i < levels.size(); i++) {
+				ArrayDeque<KThread> level = levels.get(i);
+				while (!level.isEmpty())
+					highest.addLast(level.removeFirst());
+			}
+		}
+
+		/** <tt>true</tt> if this is the queue of a lock. */
+		private boolean transferPriority;
+
+		/** The waiting threads at each level. */
+		private ArrayList<ArrayDeque<KThread>> levels;
+
+		private int size = 0;
+
+		/** The boost this queue has seen. */
+		private int epoch = boostEpoch;
+	}
+
+	/**
+	 * The scheduling state of a thread: its level, and how much of its
+	 * level's quantum it has used.
+	 */
+	protected class ThreadState {
+		/**
+		 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+		 * specified thread.
+		 * 
+		 * @param thread the thread this state belongs to.
+		 */
+		public ThreadState(KThread thread) {
+			this.thread = thread;
+
+			epoch = boostEpoch;
+			lastRunTicks = thread.getRunTicks();
+			lastBlockedTicks = thread.getBlockedTicks();
+		}
+
+		/**
+		 * Return the level of the associated thread, moving it to the highest
+		 * level if there has been a boost since it was last queued.
+		 * 
+		 * @return the level of the associated thread.
+		 */
+		public int getLevel() {
+			if (epoch != boostEpoch) {
+				epoch = boostEpoch;
+				level = 0;
+				usedTicks = 0;
+			}
+
+			return level;
+		}
+
+		/**
+		 * Charge the associated thread for the time it has run since it was
+		 * last queued, and move it to a new level: up one if it blocked since
+		 * then, other than waiting for a lock, or down one if it has used up
+		 * the quantum of its level.
+		 */
+		void account() {
+			getLevel();
+
+			long runTicks = thread.getRunTicks();
+			long blockedTicks = thread.getBlockedTicks();
+
+			usedTicks += runTicks - lastRunTicks;
+
+			boolean blocked = blockedTicks != lastBlockedTicks
+					&& !waitingForLock;
+			waitingForLock = false;
+
+			if (blocked) {
+				if (level > 0)
+					level--;
+				usedTicks = 0;
+			}
+			else if (usedTicks >= quanta[level]) {
+				if (level < quanta.length - 1)
+					level++;
+				usedTicks = 0;
+			}
+
+			lastRunTicks = runTicks;
+			lastBlockedTicks = blockedTicks;
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+
+		/** The level of the associated thread; 0 is the highest. */
+		protected int level = 0;
+
+		/** The ticks run at this level. */
+		protected long usedTicks = 0;
+
+		/** The thread's run and blocked ticks when it was last queued. */
+		private long lastRunTicks, lastBlockedTicks;
+
+		/** Set when the associated thread was last queued on a lock. */
+		private boolean waitingForLock = false;
+
+		/** The boost this state has seen. */
+		private int epoch;
+	}
+
+	/** The quantum of each level, highest first. */
+	private long[] quanta;
+
+	private long boostInterval, nextBoost;
+
+	/** The number of boosts so far. */
+	private int boostEpoch = 0;
+
+	private static final String defaultQuanta = "1000,2000,4000,8000";
+
+	private static final int defaultBoostInterval = 100000;
+}
@@ -2,9 +2,8 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Random;
 
 /**
  * A scheduler that chooses threads based on their priorities.
@@ -25,6 +24,18 @@ import java.util.Iterator;
  * <p>
  * A priority scheduler must partially solve the priority inversion problem; in
  * particular, priority must be donated through locks, and through joins.
+ * 
+ * <p>
+ * Each queue is a binary heap of thread states, ordered by effective priority
+ * and then by the order in which the threads began waiting, and each thread
+ * state remembers its index in the heap of the queue it is waiting on. A
+ * thread's effective priority is cached. When it changes, the thread is moved
+ * within the heap of the queue it waits on, and if that changes the highest
+ * priority in a queue that transfers priority, the queue's owner recomputes
+ * its own effective priority, and so on along the chain of owners, stopping
+ * as soon as a value does not change. All operations therefore take
+ * <i>O</i>(log <i>n</i>) time in the number of waiting threads, times the
+ * length of the chain and the number of queues each owner holds.
  */
 public class PriorityScheduler extends Scheduler {
 	/**
@@ -125,6 +136,97 @@ public class PriorityScheduler extends Scheduler {
 		return (ThreadState) thread.schedulingState;
 	}
 
+	/**
+	 * Measure the cost of the priority queue operations, and of donation,
+	 * with 10 to 10000 threads. Each thread is only queued, never forked.
+	 * 
+	 * <p>
+	 * <i>Wide</i>: threads of random priority wait on one lock; each
+	 * operation hands the lock to the next waiter, which then waits again.
+	 * <i>Deep</i>: a chain in which each thread holds a lock and waits for
+	 * the lock held by the next; each operation raises, then lowers, the
+	 * priority of the thread at the end of the chain, which is donated along
+	 * the whole chain.
+	 */
+	public static void benchmark() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		int[] sizes = { 10, 100, 1000, 10000 };
+
+		System.out.println("PriorityScheduler benchmark:");
+		System.out.println("  threads    wide ns/op    deep ns/op");
+
+		for (int i = 0; i < sizes.length; i++) {
+			long wide = benchmarkWide(sizes[i]);
+			long deep = benchmarkDeep(sizes[i]);
+
+			System.out.println(Lib.pad(sizes[i], 9) + Lib.pad(wide, 14)
+					+ Lib.pad(deep, 14));
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	private static long benchmarkWide(int numThreads) {
+		PriorityScheduler scheduler = new PriorityScheduler();
+		ThreadQueue lock = scheduler.newThreadQueue(true);
+		Random random = new Random(0);
+
+		KThread holder = new KThread();
+		lock.acquire(holder);
+
+		for (int i = 0; i < numThreads; i++) {
+			KThread thread = new KThread();
+			scheduler.setPriority(thread, priorityMinimum
+					+ random.nextInt(priorityMaximum - priorityMinimum + 1));
+			lock.waitForAccess(thread);
+		}
+
+		final int operations = 1000000;
+
+		long start = System.nanoTime();
+		for (int i = 0; i < operations; i++) {
+			KThread next = lock.nextThread();
+			lock.waitForAccess(holder);
+			holder = next;
+		}
+
+		return (System.nanoTime() - start) / operations;
+	}
+
+	private static long benchmarkDeep(int numThreads) {
+		PriorityScheduler scheduler = new PriorityScheduler();
+
+		KThread[] threads = new KThread[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			threads[i] = new KThread();
+			scheduler.setPriority(threads[i], priorityMinimum);
+			scheduler.newThreadQueue(true).acquire(threads[i]);
+		}
+
+		// thread i waits for the lock held by thread i+1
+		for (int i = 0; i < numThreads - 1; i++) {
+			PriorityQueue held = scheduler.getThreadState(threads[i + 1]).owned
+					.get(0);
+			held.waitForAccess(threads[i]);
+		}
+
+		final int operations = Math.max(1000, 10000000 / numThreads);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < operations; i++) {
+			scheduler.setPriority(threads[0], priorityMaximum);
+			scheduler.setPriority(threads[0], priorityMinimum);
+		}
+		long elapsed = System.nanoTime() - start;
+
+		Lib.assertTrue(scheduler.getEffectivePriority(threads[numThreads - 1])
+				== priorityMinimum);
+
+		return elapsed / (2 * operations);
+	}
+
+
 	/**
 	 * A <tt>ThreadQueue</tt> that sorts threads by priority.
 	 */
@@ -145,8 +247,21 @@ public class PriorityScheduler extends Scheduler {
 
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me
-			return null;
+
+			if (owner != null) {
+				ThreadState oldOwner = owner;
+				owner = null;
+				oldOwner.release(this);
+			}
+
+			ThreadState next = pickNextThread();
+			if (next == null)
+				return null;
+
+			remove(next);
+			next.acquire(this);
+
+			return next.thread;
 		}
 
 		/**
@@ -156,13 +271,113 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the next thread that <tt>nextThread()</tt> would return.
 		 */
 		protected ThreadState pickNextThread() {
-			// implement me
-			return null;
+			return (size > 0) ? heap[0] : null;
+		}
+
+		/**
+		 * Return the priority this queue donates to its owner: the highest
+		 * effective priority of the threads waiting on it.
+		 * 
+		 * @return the priority donated, or <tt>priorityMinimum</tt> if this
+		 * queue does not transfer priority or no threads are waiting.
+		 */
+		protected int getDonatedPriority() {
+			if (!transferPriority || size == 0)
+				return priorityMinimum;
+
+			return heap[0].effectivePriority;
 		}
 
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me (if you want)
+
+			for (int i = 0; i < size; i++)
+				System.out.print(heap[i].thread + " ");
+		}
+
+		/**
+		 * Add a thread state to the heap.
+		 */
+		void add(ThreadState state) {
+			if (size == heap.length) {
+				ThreadState[] newHeap = new ThreadState[size * 2];
+				System.arraycopy(heap, 0, newHeap, 0, size);
+				heap = newHeap;
+			}
+
+			siftUp(size++, state);
+		}
+
+		/**
+		 * Remove a thread state from the heap.
+		 */
+		void remove(ThreadState state) {
+			int index = state.heapIndex;
+			Lib.assertTrue(heap[index] == state);
+
+			ThreadState last = heap[--size];
+			heap[size] = null;
+
+			if (index < size) {
+				siftUp(index, last);
+				siftDown(last.heapIndex, last);
+			}
+
+			state.waitQueue = null;
+			state.heapIndex = -1;
+		}
+
+		/**
+		 * Restore the heap order after the effective priority of a waiting
+		 * thread has changed.
+		 */
+		void reorder(ThreadState state) {
+			siftUp(state.heapIndex, state);
+			siftDown(state.heapIndex, state);
+		}
+
+		private boolean before(ThreadState a, ThreadState b) {
+			if (a.effectivePriority != b.effectivePriority)
+				return a.effectivePriority > b.effectivePriority;
+			else
+				return a.waitSequence < b.waitSequence;
+		}
+
+		private void siftUp(int index, ThreadState state) {
+			while (index > 0) {
+				int parent = (index - 1) / 2;
+				if (!before(state, heap[parent]))
+					break;
+
+				place(index, heap[parent]);
+				index = parent;
+			}
+
+			place(index, state);
+		}
+
+		private void siftDown(int index, ThreadState state) {
+			while (true) {
+				int child = index * 2 + 1;
+				if (child >= size)
+					break;
+
+				if (child + 1 < size && before(heap[child + 1], heap[child]))
+					child++;
+
+				if (!before(heap[child], state))
+					break;
+
+				place(index, heap[child]);
+				index = child;
+			}
+
+			place(index, state);
+		}
+
+		private void place(int index, ThreadState state) {
+			heap[index] = state;
+			state.heapIndex = index;
 		}
 
 		/**
@@ -170,6 +385,13 @@ public class PriorityScheduler extends Scheduler {
 		 * threads to the owning thread.
 		 */
 		public boolean transferPriority;
+
+		/** The thread that has access, if this queue transfers priority. */
+		protected ThreadState owner = null;
+
+		/** The waiting threads; only the first <tt>size</tt> are used. */
+		private ThreadState[] heap = new ThreadState[initialCapacity];
+		private int size = 0;
 	}
 
 	/**
@@ -207,8 +429,7 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the effective priority of the associated thread.
 		 */
 		public int getEffectivePriority() {
-			// implement me
-			return priority;
+			return effectivePriority;
 		}
 
 		/**
@@ -222,7 +443,7 @@ public class PriorityScheduler extends Scheduler {
 
 			this.priority = priority;
 
-			// implement me
+			updateEffectivePriority();
 		}
 
 		/**
@@ -238,7 +459,17 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#waitForAccess
 		 */
 		public void waitForAccess(PriorityQueue waitQueue) {
-			// implement me
+			Lib.assertTrue(this.waitQueue == null);
+
+			int oldDonation = waitQueue.getDonatedPriority();
+
+			this.waitQueue = waitQueue;
+			waitSequence = numWaits++;
+			waitQueue.add(this);
+
+			if (waitQueue.owner != null
+					&& waitQueue.getDonatedPriority() != oldDonation)
+				waitQueue.owner.updateEffectivePriority();
 		}
 
 		/**
@@ -252,7 +483,68 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#nextThread
 		 */
 		public void acquire(PriorityQueue waitQueue) {
-			// implement me
+			if (!waitQueue.transferPriority)
+				return;
+
+			if (waitQueue.owner != null)
+				waitQueue.owner.release(waitQueue);
+
+			waitQueue.owner = this;
+			owned.add(waitQueue);
+
+			if (waitQueue.getDonatedPriority() > effectivePriority)
+				updateEffectivePriority();
+		}
+
+		/**
+		 * Called when the associated thread gives up access to whatever is
+		 * guarded by <tt>waitQueue</tt>, so that it no longer receives its
+		 * donation.
+		 * 
+		 * @param waitQueue the queue the associated thread no longer owns.
+		 */
+		void release(PriorityQueue waitQueue) {
+			owned.remove(waitQueue);
+
+			if (waitQueue.owner == this)
+				waitQueue.owner = null;
+
+			if (waitQueue.getDonatedPriority() >= effectivePriority)
+				updateEffectivePriority();
+		}
+
+		/**
+		 * Recompute the effective priority of the associated thread, and if it
+		 * changed, pass the change on to the owner of the queue it waits on,
+		 * and so on along the chain of owners.
+		 */
+		protected void updateEffectivePriority() {
+			ThreadState state = this;
+
+			while (state != null) {
+				int newPriority = state.priority;
+				for (int i = 0; i < state.owned.size(); i++)
+					newPriority = Math.max(newPriority, state.owned.get(i)
+							.getDonatedPriority());
+
+				if (newPriority == state.effectivePriority)
+					return;
+
+				PriorityQueue queue = state.waitQueue;
+				if (queue == null) {
+					state.effectivePriority = newPriority;
+					return;
+				}
+
+				int oldDonation = queue.getDonatedPriority();
+				state.effectivePriority = newPriority;
+				queue.reorder(state);
+
+				if (queue.getDonatedPriority() == oldDonation)
+					return;
+
+				state = queue.owner;
+			}
 		}
 
 		/** The thread with which this object is associated. */
@@ -260,5 +552,25 @@ public class PriorityScheduler extends Scheduler {
 
 		/** The priority of the associated thread. */
 		protected int priority;
+
+		/** The priority of the associated thread, including donations. */
+		protected int effectivePriority;
+
+		/** The queue the associated thread is waiting on, if any. */
+		protected PriorityQueue waitQueue = null;
+
+		/** The queues owned by the associated thread that transfer priority. */
+		protected ArrayList<PriorityQueue> owned = new ArrayList<PriorityQueue>();
+
+		/** The index of this state in the heap of <tt>waitQueue</tt>. */
+		int heapIndex = -1;
+
+		/** When the associated thread began waiting, to keep ties FIFO. */
+		long waitSequence;
 	}
+
+	/** The number of times any thread has begun waiting. */
+	private long numWaits = 0;
+
+	private static final int initialCapacity = 16;
 }
@@ -151,4 +151,39 @@ public abstract class Scheduler {
 	public boolean decreasePriority() {
 		return false;
 	}
+
+	/**
+	 * Make the specified thread a periodic real-time thread, if this scheduler
+	 * has a real-time class and can still guarantee the deadlines of the
+	 * threads already in it. Each period, the thread runs a job of at most
+	 * <tt>budget</tt> ticks, which must finish within <tt>deadline</tt> ticks
+	 * of the start of the period. Its first period starts now. A period of 0
+	 * returns the thread to the best-effort class. Must be called with
+	 * interrupts disabled.
+	 * 
+	 * @param thread the thread to make real-time.
+	 * @param period the ticks between the starts of consecutive periods.
+	 * @param deadline the ticks from the start of a period to its deadline.
+	 * @param budget the most ticks the thread runs each period.
+	 * @return <tt>true</tt> if the thread was admitted.
+	 */
+	public boolean setRealTime(KThread thread, long period, long deadline,
+			long budget) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		return period == 0;
+	}
+
+	/**
+	 * Called when the job of the specified real-time thread for its current
+	 * period has finished. Return the time at which its next period starts.
+	 * Must be called with interrupts disabled.
+	 * 
+	 * @param thread the thread whose job has finished.
+	 * @return the start of the thread's next period, or the current time if
+	 * it is not a real-time thread.
+	 */
+	public long finishPeriod(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		return Machine.timer().getTime();
+	}
 }
@@ -0,0 +1,404 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A kernel that compares schedulers on synthetic workloads of kernel threads,
+ * and then halts. Run it by setting <tt>Kernel.kernel</tt> to
+ * <tt>nachos.threads.SchedulerBenchmark</tt>.
+ * 
+ * <p>
+ * Each workload is run with each number of threads under each scheduler. Each
+ * thread does the same number of units of work, and each unit computes for a
+ * fixed number of ticks. The workloads are:
+ * 
+ * <ul>
+ * <li><tt>cpu</tt>: threads only compute.
+ * <li><tt>io</tt>: after each unit, a thread sleeps in
+ * <tt>Alarm.waitUntil()</tt>.
+ * <li><tt>lock</tt>: threads take turns at a few slots guarded by one
+ * <tt>Lock</tt> and <tt>Condition</tt>, and compute briefly while holding the
+ * lock.
+ * <li><tt>pc</tt>: half the threads produce units into one
+ * <tt>SynchList</tt>, and the other half consume them.
+ * </ul>
+ * 
+ * <p>
+ * For each run it prints the throughput, in units per thousand ticks of
+ * simulated time; the mean and 99th percentile of the ticks a thread waited
+ * on the ready queue each time; the context switches of the workload threads;
+ * and the wall-clock time the ready queue took per scheduling decision.
+ * 
+ * <p>
+ * The schedulers, workloads and numbers of threads are set by the
+ * comma-separated lists <tt>SchedulerBenchmark.schedulers</tt>,
+ * <tt>SchedulerBenchmark.workloads</tt> and
+ * <tt>SchedulerBenchmark.threads</tt>. <tt>SchedulerBenchmark.units</tt>,
+ * <tt>SchedulerBenchmark.workTicks</tt> and
+ * <tt>SchedulerBenchmark.ioTicks</tt> set the units per thread, the ticks per
+ * unit and the ticks each sleep lasts. The default numbers of threads, 10 and
+ * 100, fit within the default <tt>TCB.maxThreads</tt>; larger runs, such as
+ * 1000 or 10000 threads, need <tt>TCB.virtualThreads</tt>.
+ */
+public class SchedulerBenchmark extends ThreadedKernel {
+	/**
+	 * Allocate a new scheduler benchmark kernel.
+	 */
+	public SchedulerBenchmark() {
+		super();
+	}
+
+	/**
+	 * Run every workload at every number of threads under every scheduler,
+	 * and print the results.
+	 */
+	public void selfTest() {
+		String[] schedulers = Config.getString("SchedulerBenchmark.schedulers",
+				defaultSchedulers).split(",");
+		String[] workloads = Config.getString("SchedulerBenchmark.workloads",
+				defaultWorkloads).split(",");
+		String[] threads = Config.getString("SchedulerBenchmark.threads",
+				defaultThreads).split(",");
+
+		units = Config.getInteger("SchedulerBenchmark.units", defaultUnits);
+		workTicks = Config.getInteger("SchedulerBenchmark.workTicks",
+				defaultWorkTicks);
+		ioTicks = Config.getInteger("SchedulerBenchmark.ioTicks",
+				defaultIOTicks);
+		Lib.assertTrue(units > 0 && workTicks > 0 && ioTicks > 0);
+
+		System.out.println("SchedulerBenchmark (" + units + " units of "
+				+ workTicks + " ticks per thread, " + ioTicks
+				+ " ticks per sleep):");
+		System.out.println(Lib.pad("scheduler", -23)
+				+ Lib.pad("workload", -10)
+				+ Lib.pad("threads", 9) + Lib.pad("units/ktick", 13)
+				+ Lib.pad("mean wait", 12) + Lib.pad("p99 wait", 11)
+				+ Lib.pad("switches", 11) + Lib.pad("ns/decision", 13)
+				+ Lib.pad("wall ms", 10));
+
+		Scheduler original = scheduler;
+
+		for (int i = 0; i < workloads.length; i++) {
+			for (int j = 0; j < threads.length; j++) {
+				for (int k = 0; k < schedulers.length; k++) {
+					run(schedulers[k].trim(), workloads[i].trim(),
+							Integer.parseInt(threads[j].trim()));
+				}
+			}
+		}
+
+		boolean intStatus = Machine.interrupt().disable();
+		KThread.setScheduler(original);
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Run one workload with the specified number of threads under a new
+	 * instance of the specified scheduler, and print one row of results.
+	 */
+	private void run(String schedulerName, String workload, int numThreads) {
+		Lib.assertTrue(numThreads > 0);
+
+		MeasuredScheduler measured = new MeasuredScheduler(
+				(Scheduler) Lib.constructObject(schedulerName));
+
+		boolean intStatus = Machine.interrupt().disable();
+		KThread.setScheduler(measured);
+		Machine.interrupt().restore(intStatus);
+
+		KThread[] threads = createThreads(workload, numThreads);
+
+		long startTicks = Machine.timer().getTime();
+		long startTime = System.nanoTime();
+
+		for (int i = 0; i < threads.length; i++)
+			threads[i].fork();
+		for (int i = 0; i < threads.length; i++)
+			threads[i].join();
+
+		long ticks = Machine.timer().getTime() - startTicks;
+		long elapsed = System.nanoTime() - startTime;
+
+		long switches = 0;
+		for (int i = 0; i < threads.length; i++) {
+			switches += threads[i].getVoluntarySwitches()
+					+ threads[i].getInvoluntarySwitches();
+		}
+
+		long[] waits = Arrays.copyOf(measured.waits, measured.numWaits);
+		Arrays.sort(waits);
+
+		long totalWait = 0;
+		for (int i = 0; i < waits.length; i++)
+			totalWait += waits[i];
+
+		long meanWait = (waits.length > 0) ? totalWait / waits.length : 0;
+		long p99Wait = (waits.length > 0) ? waits[(waits.length * 99 + 99)
+				/ 100 - 1] : 0;
+
+		String name = schedulerName.substring(
+				schedulerName.lastIndexOf('.') + 1);
+
+		System.out.println(Lib.pad(name, -23) + Lib.pad(workload, -10)
+				+ Lib.pad(threads.length, 9)
+				+ Lib.pad(format((double) threads.length * units * 1000
+						/ Math.max(ticks, 1)), 13)
+				+ Lib.pad(meanWait, 12) + Lib.pad(p99Wait, 11)
+				+ Lib.pad(switches, 11)
+				+ Lib.pad(measured.nanos / Math.max(measured.decisions, 1), 13)
+				+ Lib.pad(elapsed / 1000000, 10));
+	}
+
+	/**
+	 * Create, without forking them, the threads of the specified workload.
+	 */
+	private KThread[] createThreads(String workload, int numThreads) {
+		KThread[] threads;
+
+		if (workload.equals("cpu")) {
+			threads = new KThread[numThreads];
+			for (int i = 0; i < numThreads; i++) {
+				threads[i] = new KThread(new Runnable() {
+					public void run() {
+						for (int j = 0; j < units; j++)
+							compute(workTicks);
+					}
+				});
+			}
+		}
+		else if (workload.equals("io")) {
+			threads = new KThread[numThreads];
+			for (int i = 0; i < numThreads; i++) {
+				threads[i] = new KThread(new Runnable() {
+					public void run() {
+						for (int j = 0; j < units; j++) {
+							compute(workTicks);
+							alarm.waitUntil(ioTicks);
+						}
+					}
+				});
+			}
+		}
+		else if (workload.equals("lock")) {
+			final Lock lock = new Lock();
+			final Condition slotFree = new Condition(lock);
+			final int[] busy = new int[1];
+
+			threads = new KThread[numThreads];
+			for (int i = 0; i < numThreads; i++) {
+				threads[i] = new KThread(new Runnable() {
+					public void run() {
+						for (int j = 0; j < units; j++) {
+							lock.acquire();
+							while (busy[0] == lockSlots)
+								slotFree.sleep();
+							busy[0]++;
+							compute(workTicks / 10);
+							lock.release();
+
+							compute(workTicks);
+
+							lock.acquire();
+							busy[0]--;
+							slotFree.wake();
+							lock.release();
+						}
+					}
+				});
+			}
+		}
+		else if (workload.equals("pc")) {
+			Lib.assertTrue(numThreads >= 2);
+
+			final SynchList list = new SynchList();
+
+			threads = new KThread[numThreads / 2 * 2];
+			for (int i = 0; i < threads.length; i += 2) {
+				threads[i] = new KThread(new Runnable() {
+					public void run() {
+						for (int j = 0; j < units; j++) {
+							compute(workTicks);
+							list.add(this);
+						}
+					}
+				});
+				threads[i + 1] = new KThread(new Runnable() {
+					public void run() {
+						for (int j = 0; j < units; j++)
+							list.removeFirst();
+					}
+				});
+			}
+		}
+		else {
+			Lib.assertNotReached("unknown workload: " + workload);
+			return null;
+		}
+
+		for (int i = 0; i < threads.length; i++)
+			threads[i].setName(workload + " " + i);
+
+		return threads;
+	}
+
+	/**
+	 * Compute for at least the specified number of ticks, enabling interrupts
+	 * so that the thread can be preempted.
+	 */
+	private static void compute(long ticks) {
+		long end = Machine.timer().getTime() + ticks;
+
+		while (Machine.timer().getTime() < end) {
+			Machine.interrupt().disable();
+			Machine.interrupt().enable();
+		}
+	}
+
+	private static String format(double value) {
+		long hundredths = Math.round(value * 100);
+		return (hundredths / 100) + "." + (hundredths / 10 % 10)
+				+ (hundredths % 10);
+	}
+
+
+	/**
+	 * A scheduler that passes everything on to another, but measures the
+	 * first queue it creates, which is the ready queue.
+	 */
+	private static class MeasuredScheduler extends Scheduler {
+		MeasuredScheduler(Scheduler scheduler) {
+			this.scheduler = scheduler;
+		}
+
+		public ThreadQueue newThreadQueue(boolean transferPriority) {
+			ThreadQueue queue = scheduler.newThreadQueue(transferPriority);
+
+			if (!readyQueueCreated) {
+				readyQueueCreated = true;
+				queue = new MeasuredQueue(queue);
+			}
+
+			return queue;
+		}
+
+		public int getPriority(KThread thread) {
+			return scheduler.getPriority(thread);
+		}
+
+		public int getEffectivePriority(KThread thread) {
+			return scheduler.getEffectivePriority(thread);
+		}
+
+		public void setPriority(KThread thread, int priority) {
+			scheduler.setPriority(thread, priority);
+		}
+
+		public boolean increasePriority() {
+			return scheduler.increasePriority();
+		}
+
+		public boolean decreasePriority() {
+			return scheduler.decreasePriority();
+		}
+
+		public boolean setRealTime(KThread thread, long period, long deadline,
+				long budget) {
+			return scheduler.setRealTime(thread, period, deadline, budget);
+		}
+
+		public long finishPeriod(KThread thread) {
+			return scheduler.finishPeriod(thread);
+		}
+
+		/**
+		 * A queue that records how long each thread waits on another queue,
+		 * and the wall-clock time the other queue takes.
+		 */
+		private class MeasuredQueue extends ThreadQueue {
+			MeasuredQueue(ThreadQueue queue) {
+				this.queue = queue;
+			}
+
+			public void waitForAccess(KThread thread) {
+				queuedAt.put(thread, Machine.timer().getTime());
+
+				long start = System.nanoTime();
+				queue.waitForAccess(thread);
+				nanos += System.nanoTime() - start;
+			}
+
+			public KThread nextThread() {
+				long start = System.nanoTime();
+				KThread thread = queue.nextThread();
+				nanos += System.nanoTime() - start;
+				decisions++;
+
+				if (thread != null)
+					addWait(Machine.timer().getTime()
+							- queuedAt.remove(thread));
+
+				return thread;
+			}
+
+			public void acquire(KThread thread) {
+				queue.acquire(thread);
+			}
+
+			public void print() {
+				queue.print();
+			}
+
+			private ThreadQueue queue;
+
+			/** The time each waiting thread was queued. */
+			private HashMap<KThread, Long> queuedAt =
+				new HashMap<KThread, Long>();
+		}
+
+		private void addWait(long ticks) {
+			if (numWaits == waits.length)
+				waits = Arrays.copyOf(waits, numWaits * 2);
+
+			waits[numWaits++] = ticks;
+		}
+
+		private Scheduler scheduler;
+
+		private boolean readyQueueCreated = false;
+
+		/** The ticks each thread chosen from the ready queue waited there. */
+		long[] waits = new long[1024];
+		int numWaits = 0;
+
+		/** The wall-clock time spent in the ready queue, in nanoseconds. */
+		long nanos = 0;
+
+		/** The calls to <tt>nextThread()</tt> on the ready queue. */
+		long decisions = 0;
+	}
+
+	private int units;
+
+	private long workTicks, ioTicks;
+
+	/** The threads that can hold a slot at once in the lock workload. */
+	private static final int lockSlots = 2;
+
+	private static final String defaultSchedulers =
+		"nachos.threads.RoundRobinScheduler,nachos.threads.PriorityScheduler,"
+		+ "nachos.threads.LotteryScheduler";
+
+	private static final String defaultWorkloads = "cpu,io,lock,pc";
+
+	private static final String defaultThreads = "10,100";
+
+	private static final int defaultUnits = 10;
+
+	private static final int defaultWorkTicks = 100;
+
+	private static final int defaultIOTicks = 1000;
+}
@@ -0,0 +1,532 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+
+/**
+ * A scheduler that shares access in proportion to tickets, deterministically.
+ * 
+ * <p>
+ * A stride scheduler associates a number of tickets with each thread, as a
+ * lottery scheduler does, and a <i>stride</i> inversely proportional to them.
+ * Each thread also has a <i>pass</i>. The next thread to receive access is
+ * always the waiting thread with the lowest pass, and its pass then advances
+ * by its stride. Among threads with the same pass, the one that has been
+ * waiting longest is chosen. Over any interval, the share each thread
+ * receives differs from its share of the tickets by less than one access per
+ * thread, instead of only on average.
+ * 
+ * <p>
+ * A thread that starts waiting while behind the queue's pass, the pass of the
+ * thread most recently chosen, is moved up to it, so that a thread cannot
+ * save up access while it waits elsewhere and then monopolize the queue.
+ * 
+ * <p>
+ * Each queue is a binary heap ordered by pass, and each thread state
+ * remembers its index in it, so choosing a thread and adding one both take
+ * <i>O</i>(log <i>n</i>) time. Tickets are transferred through locks, and
+ * add, as in <tt>LotteryScheduler</tt>: a change to a thread's effective
+ * tickets is passed up the chain of owners as a difference. Since a pass only
+ * changes when its thread is chosen, no heap is reordered by a donation.
+ */
+public class StrideScheduler extends PriorityScheduler {
+	/**
+	 * Allocate a new stride scheduler.
+	 */
+	public StrideScheduler() {
+	}
+
+	/**
+	 * Allocate a new stride thread queue.
+	 * 
+	 * @param transferPriority <tt>true</tt> if this queue should transfer
+	 * tickets from waiting threads to the owning thread.
+	 * @return a new stride thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new StrideQueue(transferPriority);
+	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getStrideState(thread).tickets;
+	}
+
+	/**
+	 * Return the effective tickets of the specified thread, or
+	 * <tt>Integer.MAX_VALUE</tt> if it has more.
+	 */
+	public int getEffectivePriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return (int) Math.min(getStrideState(thread).effectiveTickets,
+				Integer.MAX_VALUE);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= LotteryScheduler.ticketsMinimum
+				&& priority <= LotteryScheduler.ticketsMaximum);
+
+		getStrideState(thread).setTickets(priority);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == LotteryScheduler.ticketsMaximum)
+			ret = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == LotteryScheduler.ticketsMinimum)
+			ret = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 * 
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected StrideState getStrideState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new StrideState(thread);
+
+		return (StrideState) thread.schedulingState;
+	}
+
+	/**
+	 * Compare two passes, which may have wrapped around.
+	 */
+	private static boolean passBefore(long a, long b) {
+		return a - b < 0;
+	}
+
+	/**
+	 * Compare the fairness and speed of stride and lottery scheduling of a
+	 * ready queue. The thread chosen each time goes back on the queue at
+	 * once. The error is the largest difference, at any point, between the
+	 * number of times a thread was chosen and its share of the tickets times
+	 * the number of choices so far. Each thread is only queued, never forked.
+	 */
+	public static void benchmark() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		final int choices = 1000000;
+
+		int[][] ticketSets = { { 1, 2, 3, 4, 10 },
+				{ 7, 7, 7, 1000 },
+				{ LotteryScheduler.ticketsMaximum, 1000, 1 } };
+
+		System.out.println("StrideScheduler fairness (" + choices
+				+ " choices):");
+		System.out.println("  tickets                    stride error  "
+				+ "lottery error");
+
+		for (int s = 0; s < ticketSets.length; s++) {
+			int[] tickets = ticketSets[s];
+
+			StringBuffer name = new StringBuffer();
+			for (int i = 0; i < tickets.length; i++)
+				name.append((i > 0 ? "," : "") + tickets[i]);
+
+			double strideError = choose(new StrideScheduler(), tickets,
+					choices, true);
+			double lotteryError = choose(new LotteryScheduler(), tickets,
+					choices, true);
+
+			System.out.println("  " + Lib.pad(name.toString(), -25)
+					+ Lib.pad(format(strideError), 14)
+					+ Lib.pad(format(lotteryError), 15));
+		}
+
+		int[] sizes = { 10, 100, 1000, 10000 };
+
+		System.out.println("StrideScheduler throughput:");
+		System.out.println("  threads   stride ns/op  lottery ns/op");
+
+		for (int i = 0; i < sizes.length; i++) {
+			int[] tickets = new int[sizes[i]];
+			for (int j = 0; j < sizes[i]; j++)
+				tickets[j] = 1 + Lib.random(100);
+
+			// the first round warms up the JIT
+			long strideTime = 0, lotteryTime = 0;
+			for (int round = 0; round < 2; round++) {
+				long start = System.nanoTime();
+				choose(new StrideScheduler(), tickets, choices, false);
+				strideTime = (System.nanoTime() - start) / choices;
+
+				start = System.nanoTime();
+				choose(new LotteryScheduler(), tickets, choices, false);
+				lotteryTime = (System.nanoTime() - start) / choices;
+			}
+
+			System.out.println(Lib.pad(Integer.toString(sizes[i]), 9)
+					+ Lib.pad(Long.toString(strideTime), 15)
+					+ Lib.pad(Long.toString(lotteryTime), 15));
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Put threads with the specified tickets on a queue, and choose the
+	 * specified number of times, putting each thread chosen back on the
+	 * queue.
+	 * 
+	 * @return the largest error, if <tt>measure</tt> is <tt>true</tt>.
+	 */
+	private static double choose(Scheduler scheduler, int[] tickets,
+			int choices, boolean measure) {
+		ThreadQueue queue = scheduler.newThreadQueue(false);
+
+		long total = 0;
+		KThread[] threads = new KThread[tickets.length];
+		for (int i = 0; i < tickets.length; i++) {
+			threads[i] = new KThread();
+			scheduler.setPriority(threads[i], tickets[i]);
+			queue.waitForAccess(threads[i]);
+			total += tickets[i];
+		}
+
+		long[] counts = new long[tickets.length];
+		double error = 0;
+
+		for (int i = 0; i < choices; i++) {
+			KThread chosen = queue.nextThread();
+			queue.waitForAccess(chosen);
+
+			if (measure) {
+				int j = 0;
+				while (threads[j] != chosen)
+					j++;
+				counts[j]++;
+
+				for (j = 0; j < tickets.length; j++) {
+					double expected = (double) (i + 1) * tickets[j] / total;
+					error = Math.max(error, Math.abs(counts[j] - expected));
+				}
+			}
+		}
+
+		return error;
+	}
+
+	private static String format(double value) {
+		long tenths = Math.round(value * 10);
+		return (tenths / 10) + "." + (tenths % 10);
+	}
+
+
+	/**
+	 * A <tt>ThreadQueue</tt> that chooses the waiting thread with the lowest
+	 * pass.
+	 */
+	protected class StrideQueue extends TicketQueue {
+		StrideQueue(boolean transferPriority) {
+			super(transferPriority);
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getStrideState(thread).waitForAccess(this);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getStrideState(thread).acquire(this);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (owner != null)
+				owner.release(this);
+
+			StrideState next = pickNextThread();
+			if (next == null)
+				return null;
+
+			remove(next);
+
+			pass = next.pass;
+			next.pass += next.getStride();
+
+			next.acquire(this);
+
+			return next.thread;
+		}
+
+		/**
+		 * Return the next thread that <tt>nextThread()</tt> would return,
+		 * without modifying the state of this queue.
+		 * 
+		 * @return the next thread that <tt>nextThread()</tt> would return.
+		 */
+		protected StrideState pickNextThread() {
+			return (size > 0) ? heap[0] : null;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < size; i++)
+				System.out.print(heap[i].thread + " ");
+		}
+
+		/**
+		 * Add a thread state to the heap.
+		 */
+		void add(StrideState state) {
+			if (size == heap.length) {
+				StrideState[] newHeap = new StrideState[size * 2];
+				System.arraycopy(heap, 0, newHeap, 0, size);
+				heap = newHeap;
+			}
+
+			totalTickets += state.effectiveTickets;
+			siftUp(size++, state);
+		}
+
+		/**
+		 * Remove a thread state from the heap.
+		 */
+		void remove(StrideState state) {
+			int index = state.heapIndex;
+			Lib.assertTrue(heap[index] == state);
+
+			StrideState last = heap[--size];
+			heap[size] = null;
+
+			if (index < size) {
+				siftUp(index, last);
+				siftDown(last.heapIndex, last);
+			}
+
+			totalTickets -= state.effectiveTickets;
+			state.waitQueue = null;
+			state.heapIndex = -1;
+		}
+
+		private boolean before(StrideState a, StrideState b) {
+			if (a.pass != b.pass)
+				return passBefore(a.pass, b.pass);
+			else
+				return a.waitSequence < b.waitSequence;
+		}
+
+		private void siftUp(int index, StrideState state) {
+			while (index > 0) {
+				int parent = (index - 1) / 2;
+				if (!before(state, heap[parent]))
+					break;
+
+				place(index, heap[parent]);
+				index = parent;
+			}
+
+			place(index, state);
+		}
+
+		private void siftDown(int index, StrideState state) {
+			while (true) {
+				int child = index * 2 + 1;
+				if (child >= size)
+					break;
+
+				if (child + 1 < size && before(heap[child + 1], heap[child]))
+					child++;
+
+				if (!before(heap[child], state))
+					break;
+
+				place(index, heap[child]);
+				index = child;
+			}
+
+			place(index, state);
+		}
+
+		private void place(int index, StrideState state) {
+			heap[index] = state;
+			state.heapIndex = index;
+		}
+
+		TicketHolder getOwner() {
+			return owner;
+		}
+
+		void addWaitingTickets(TicketHolder state, long delta) {
+			totalTickets += delta;
+		}
+
+		/** The thread that has access, if this queue transfers tickets. */
+		protected StrideState owner = null;
+
+		/** The pass of the thread most recently chosen. */
+		protected long pass = 0;
+
+		/** The effective tickets of the waiting threads. */
+		protected long totalTickets = 0;
+
+		/** The waiting threads; only the first <tt>size</tt> are used. */
+		private StrideState[] heap = new StrideState[initialCapacity];
+		private int size = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread: its tickets, its effective tickets,
+	 * its pass, the queues it owns and the queue it's waiting for, if any.
+	 * 
+	 * @see nachos.threads.KThread#schedulingState
+	 */
+	protected class StrideState extends TicketHolder {
+		/**
+		 * Allocate a new <tt>StrideState</tt> object and associate it with
+		 * the specified thread.
+		 * 
+		 * @param thread the thread this state belongs to.
+		 */
+		public StrideState(KThread thread) {
+			this.thread = thread;
+
+			tickets = priorityDefault;
+			effectiveTickets = priorityDefault;
+		}
+
+		/**
+		 * Return the stride of the associated thread, from its effective
+		 * tickets.
+		 * 
+		 * @return the amount by which the pass advances each time the
+		 * associated thread is chosen.
+		 */
+		public long getStride() {
+			return Math.max(stride1 / effectiveTickets, 1);
+		}
+
+		/**
+		 * Set the tickets of the associated thread to the specified value.
+		 * 
+		 * @param tickets the new number of tickets.
+		 */
+		public void setTickets(int tickets) {
+			long delta = (long) tickets - this.tickets;
+			this.tickets = tickets;
+
+			addTickets(delta);
+		}
+
+		/**
+		 * Called when the associated thread begins waiting on the specified
+		 * queue. Its pass is raised to the queue's pass, if it is behind.
+		 * 
+		 * @param waitQueue the queue that the associated thread is now waiting
+		 * on.
+		 */
+		public void waitForAccess(StrideQueue waitQueue) {
+			Lib.assertTrue(this.waitQueue == null);
+
+			if (passBefore(pass, waitQueue.pass))
+				pass = waitQueue.pass;
+
+			this.waitQueue = waitQueue;
+			waitSequence = numWaits++;
+			waitQueue.add(this);
+
+			if (waitQueue.transferPriority && waitQueue.owner != null)
+				waitQueue.owner.addTickets(effectiveTickets);
+		}
+
+		/**
+		 * Called when the associated thread has acquired access to whatever
+		 * is guarded by <tt>waitQueue</tt>.
+		 * 
+		 * @param waitQueue the queue the associated thread now owns.
+		 */
+		public void acquire(StrideQueue waitQueue) {
+			if (!waitQueue.transferPriority)
+				return;
+
+			if (waitQueue.owner != null)
+				waitQueue.owner.release(waitQueue);
+
+			waitQueue.owner = this;
+			owned.add(waitQueue);
+
+			addTickets(waitQueue.totalTickets);
+		}
+
+		/**
+		 * Called when the associated thread gives up access to whatever is
+		 * guarded by <tt>waitQueue</tt>, so that it no longer receives the
+		 * tickets of the threads waiting there.
+		 * 
+		 * @param waitQueue the queue the associated thread no longer owns.
+		 */
+		void release(StrideQueue waitQueue) {
+			owned.remove(waitQueue);
+			waitQueue.owner = null;
+
+			addTickets(-waitQueue.totalTickets);
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+
+		/** The tickets of the associated thread. */
+		protected int tickets;
+
+		/** The pass of the associated thread. */
+		protected long pass = 0;
+
+		/** The queue the associated thread is waiting on, if any. */
+		protected StrideQueue waitQueue = null;
+
+		/** The queues owned by the associated thread that transfer tickets. */
+		protected ArrayList<StrideQueue> owned = new ArrayList<StrideQueue>();
+
+		/** The index of this state in the heap of <tt>waitQueue</tt>. */
+		int heapIndex = -1;
+
+		/** When the associated thread began waiting, to keep ties FIFO. */
+		long waitSequence;
+
+		TicketQueue getWaitQueue() {
+			return waitQueue;
+		}
+	}
+
+	/** The number of times any thread has begun waiting. */
+	private long numWaits = 0;
+
+	/** The stride of a thread with one ticket. */
+	private static final long stride1 = 1L << 40;
+
+	private static final int initialCapacity = 16;
+}
@@ -82,6 +82,40 @@ public class SynchList {
 		}
 	}
 
+	/**
+	 * Measure context switch latency: two threads pass an object back and
+	 * forth through a pair of lists, as in <tt>selfTest()</tt>, and the
+	 * switches per second of wall-clock time are printed. Each round trip
+	 * takes two context switches.
+	 */
+	public static void benchmark() {
+		final int roundTrips = 50000;
+
+		final SynchList ping = new SynchList();
+		final SynchList pong = new SynchList();
+
+		KThread forked = new KThread(new Runnable() {
+			public void run() {
+				for (int i = 0; i < roundTrips; i++)
+					pong.add(ping.removeFirst());
+			}
+		}).setName("ping");
+
+		Object o = new Object();
+
+		long start = System.nanoTime();
+		forked.fork();
+		for (int i = 0; i < roundTrips; i++) {
+			ping.add(o);
+			Lib.assertTrue(pong.removeFirst() == o);
+		}
+		forked.join();
+		long elapsed = System.nanoTime() - start;
+
+		KThread.printSwitchRate("SynchList ping-pong", 2 * roundTrips,
+				elapsed);
+	}
+
 	private LinkedList<Object> list;
 
 	private Lock lock;
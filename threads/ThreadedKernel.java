@@ -54,6 +54,14 @@ public class ThreadedKernel extends Kernel {
 		}
 
 		//Alarm.selfTest();
+
+		if (Config.getBoolean("ThreadedKernel.benchmark", false)) {
+			KThread.benchmark();
+			SynchList.benchmark();
+			PriorityScheduler.benchmark();
+			LotteryScheduler.benchmark();
+			StrideScheduler.benchmark();
+		}
 	}
 
 	/**
@@ -63,6 +71,13 @@ public class ThreadedKernel extends Kernel {
 	public void run() {
 	}
 
+	/**
+	 * Print the time each thread has spent running, ready and blocked.
+	 */
+	public void printStats() {
+		KThread.printStats();
+	}
+
 	/**
 	 * Terminate this kernel. Never returns.
 	 */
@@ -0,0 +1,61 @@
+package nachos.threads;
+
+/**
+ * The tickets of a thread under a scheduler that transfers tickets, as in
+ * <tt>LotteryScheduler</tt> and <tt>StrideScheduler</tt>.
+ * 
+ * <p>
+ * Tickets are transferred through locks, and add: a thread's effective
+ * tickets are its own plus the effective tickets of every thread waiting on a
+ * queue it owns. A change to a thread's effective tickets is passed up the
+ * chain of owners as a difference, by <tt>addTickets()</tt>.
+ * 
+ * @see nachos.threads.TicketQueue
+ */
+abstract class TicketHolder {
+	/**
+	 * Return the queue the associated thread is waiting on, if any.
+	 * 
+	 * @return the queue, or <tt>null</tt> if the thread is not waiting.
+	 */
+	abstract TicketQueue getWaitQueue();
+
+	/**
+	 * Add a difference to the effective tickets of the associated thread,
+	 * and pass it on to the queue it waits on and, if that queue transfers
+	 * tickets, to the queue's owner, and so on along the chain of owners. A
+	 * thread is changed at most once, so a deadlock cycle is only walked
+	 * around once.
+	 * 
+	 * @param delta the difference to add.
+	 */
+	void addTickets(long delta) {
+		int mark = ++numUpdates;
+		TicketHolder state = this;
+
+		while (state != null && delta != 0 && state.mark != mark) {
+			state.mark = mark;
+			state.effectiveTickets += delta;
+
+			TicketQueue queue = state.getWaitQueue();
+			if (queue == null)
+				break;
+
+			queue.addWaitingTickets(state, delta);
+
+			if (!queue.transferPriority)
+				break;
+
+			state = queue.getOwner();
+		}
+	}
+
+	/** The tickets of the associated thread, including donations. */
+	protected long effectiveTickets;
+
+	/** The update that last changed this state. */
+	private int mark = 0;
+
+	/** The number of changes of effective tickets, to detect cycles. */
+	private static int numUpdates = 0;
+}
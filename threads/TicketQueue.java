@@ -0,0 +1,41 @@
+package nachos.threads;
+
+/**
+ * A <tt>ThreadQueue</tt> whose waiting threads may transfer their tickets to
+ * the thread that owns it.
+ * 
+ * @see nachos.threads.TicketHolder
+ */
+abstract class TicketQueue extends ThreadQueue {
+	/**
+	 * Allocate a new ticket queue.
+	 * 
+	 * @param transferPriority <tt>true</tt> if this queue should transfer
+	 * tickets from waiting threads to the owning thread.
+	 */
+	TicketQueue(boolean transferPriority) {
+		this.transferPriority = transferPriority;
+	}
+
+	/**
+	 * Return the thread that has access, if this queue transfers tickets.
+	 * 
+	 * @return the owner, or <tt>null</tt> if there is none.
+	 */
+	abstract TicketHolder getOwner();
+
+	/**
+	 * Add a difference to the tickets counted for a waiting thread, whose
+	 * effective tickets have just changed.
+	 * 
+	 * @param state the waiting thread.
+	 * @param delta the difference to add.
+	 */
+	abstract void addWaitingTickets(TicketHolder state, long delta);
+
+	/**
+	 * <tt>true</tt> if this queue should transfer tickets from waiting
+	 * threads to the owning thread.
+	 */
+	public boolean transferPriority;
+}
@@ -57,6 +57,14 @@ public class UThread extends KThread {
 		process.restoreState();
 	}
 
+	/**
+	 * Return the process this thread belongs to, so that the threads of one
+	 * process are scheduled as a group.
+	 */
+	protected Object getSchedulingGroup() {
+		return process;
+	}
+
 	/**
 	 * Storage for the user register set.
 	 * 
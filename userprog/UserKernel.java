@@ -95,6 +95,7 @@ public class UserKernel extends ThreadedKernel {
 
 		UserProcess process = ((UThread) KThread.currentThread()).process;
 		int cause = Machine.processor().readRegister(Processor.regCause);
+		process.countException(cause);
 		process.handleException(cause);
 	}
 
@@ -127,6 +128,15 @@ public class UserKernel extends ThreadedKernel {
 		KThread.currentThread().finish();
 	}
 
+	/**
+	 * Print the thread statistics, then the time each process has spent
+	 * running, ready and blocked, and the exceptions it caused.
+	 */
+	public void printStats() {
+		super.printStats();
+		UserProcess.printStats();
+	}
+
 	/**
 	 * Terminate this kernel. Never returns.
 	 */
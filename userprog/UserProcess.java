@@ -78,7 +78,17 @@ public class UserProcess {
 	 * @return <tt>true</tt> if the program was successfully executed.
 	 */
 	public boolean execute(String name, String[] args) {
+		// register before forking, since the new thread may run, and even
+		// exit, before fork() returns
+		boolean intStatus = Machine.interrupt().disable();
+		liveProcesses.put(processID, this);
+		Machine.interrupt().restore(intStatus);
+
 		if (!load(name, args)) {
+			intStatus = Machine.interrupt().disable();
+			liveProcesses.remove(processID);
+			Machine.interrupt().restore(intStatus);
+
 			return false;
 		}
 
@@ -656,6 +666,8 @@ public class UserProcess {
 		}
 
 		if (UserKernel.numProcess > 1) {
+			retire();
+
 			UserKernel.PIDlock.acquire();
 				UserKernel.numProcess--;
 				this.thread.finish();
@@ -1006,7 +1018,7 @@ public class UserProcess {
 	private static final int syscallHalt = 0, syscallExit = 1, syscallExec = 2,
 			syscallJoin = 3, syscallCreate = 4, syscallOpen = 5,
 			syscallRead = 6, syscallWrite = 7, syscallClose = 8,
-			syscallUnlink = 9;
+			syscallUnlink = 9, syscallProcStats = 13;
 
 	/**
 	 * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -1060,6 +1072,11 @@ public class UserProcess {
 	 * <td>9</td>
 	 * <td><tt>int  unlink(char *name);</tt></td>
 	 * </tr>
+	 * <tr>
+	 * <td>13</td>
+	 * <td><tt>int  procstats(int pid, struct procstats *stats);
+	 * 								</tt></td>
+	 * </tr>
 	 * </table>
 	 * 
 	 * @param syscall the syscall number.
@@ -1091,6 +1108,8 @@ public class UserProcess {
 			return handleExec(a0, a1, a2);
 		case syscallJoin:
 			return handleJoin(a0, a1);
+		case syscallProcStats:
+			return handleProcStats(a0, a1);
 
 
 		default:
@@ -1100,6 +1119,172 @@ public class UserProcess {
 		return 0;
 	}
 
+	/**
+	 * Handle the <tt>procstats()</tt> system call.
+	 */
+	private int handleProcStats(int pid, int vaddr) {
+		UserProcess process = (pid == -1) ? this : findProcess(pid);
+		if (process == null)
+			return -1;
+
+		Lib.bytesFromInt(statsBuffer, 0, (int) process.getRunTicks());
+		Lib.bytesFromInt(statsBuffer, 4, (int) process.getReadyTicks());
+		Lib.bytesFromInt(statsBuffer, 8, (int) process.getBlockedTicks());
+		Lib.bytesFromInt(statsBuffer, 12, process.getVoluntarySwitches());
+		Lib.bytesFromInt(statsBuffer, 16, process.getInvoluntarySwitches());
+		Lib.bytesFromInt(statsBuffer, 20, process.numPageFaults);
+		Lib.bytesFromInt(statsBuffer, 24, process.numTLBMisses);
+		Lib.bytesFromInt(statsBuffer, 28, process.numSyscalls);
+
+		if (writeVirtualMemory(vaddr, statsBuffer) != statsBuffer.length)
+			return -1;
+
+		return 0;
+	}
+
+	private static UserProcess findProcess(int pid) {
+		return liveProcesses.get(pid);
+	}
+
+	/**
+	 * Remove this process from the live processes, adding its accounting to
+	 * the totals of the processes that have exited. Called by
+	 * <tt>handleExit()</tt>.
+	 */
+	private void retire() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		liveProcesses.remove(processID);
+		numExitedProcesses++;
+		exitedRunTicks += getRunTicks();
+		exitedReadyTicks += getReadyTicks();
+		exitedBlockedTicks += getBlockedTicks();
+		exitedVoluntarySwitches += getVoluntarySwitches();
+		exitedInvoluntarySwitches += getInvoluntarySwitches();
+		exitedPageFaults += numPageFaults;
+		exitedTLBMisses += numTLBMisses;
+		exitedSyscalls += numSyscalls;
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Count an exception caused by this process. Called by
+	 * <tt>UserKernel.exceptionHandler()</tt> before
+	 * <tt>handleException()</tt>.
+	 * 
+	 * @param cause the user exception that occurred.
+	 */
+	void countException(int cause) {
+		if (cause == Processor.exceptionSyscall)
+			numSyscalls++;
+		else if (cause == Processor.exceptionPageFault)
+			numPageFaults++;
+		else if (cause == Processor.exceptionTLBMiss)
+			numTLBMisses++;
+	}
+
+	/**
+	 * Return the number of ticks this process has spent running.
+	 * 
+	 * @return the run ticks of the thread executing this process.
+	 */
+	public long getRunTicks() {
+		return (thread != null) ? thread.getRunTicks() : 0;
+	}
+
+	/**
+	 * Return the number of ticks this process has spent waiting to run.
+	 * 
+	 * @return the ready ticks of the thread executing this process.
+	 */
+	public long getReadyTicks() {
+		return (thread != null) ? thread.getReadyTicks() : 0;
+	}
+
+	/**
+	 * Return the number of ticks this process has spent blocked.
+	 * 
+	 * @return the blocked ticks of the thread executing this process.
+	 */
+	public long getBlockedTicks() {
+		return (thread != null) ? thread.getBlockedTicks() : 0;
+	}
+
+	/**
+	 * Return the number of times this process blocked or yielded.
+	 * 
+	 * @return the voluntary switches of the thread executing this process.
+	 */
+	public int getVoluntarySwitches() {
+		return (thread != null) ? thread.getVoluntarySwitches() : 0;
+	}
+
+	/**
+	 * Return the number of times this process was preempted.
+	 * 
+	 * @return the involuntary switches of the thread executing this process.
+	 */
+	public int getInvoluntarySwitches() {
+		return (thread != null) ? thread.getInvoluntarySwitches() : 0;
+	}
+
+	/**
+	 * Print the time each live process has spent running, ready and blocked,
+	 * and the exceptions it caused, busiest processes first, followed by the
+	 * totals of the processes that have exited.
+	 */
+	public static void printStats() {
+		UserProcess[] processes = liveProcesses.values().toArray(
+				new UserProcess[0]);
+
+		Arrays.sort(processes, new Comparator<UserProcess>() {
+			public int compare(UserProcess a, UserProcess b) {
+				return Long.compare(b.getRunTicks(), a.getRunTicks());
+			}
+		});
+
+		System.out.println("Processes:");
+		System.out.println(Lib.pad("pid", 6) + Lib.pad("program", -17)
+				+ Lib.pad("run", 13) + Lib.pad("ready", 13)
+				+ Lib.pad("blocked", 13) + Lib.pad("vol", 9)
+				+ Lib.pad("invol", 9) + Lib.pad("faults", 9)
+				+ Lib.pad("tlb", 9) + Lib.pad("syscalls", 10));
+
+		for (int i = 0; i < processes.length && i < maxStatsRows; i++) {
+			UserProcess process = processes[i];
+			String program = (process.thread != null) ? process.thread
+					.getName() : "(none)";
+
+			System.out.println(Lib.pad(process.processID, 6)
+					+ Lib.pad(program, -17)
+					+ Lib.pad(process.getRunTicks(), 13)
+					+ Lib.pad(process.getReadyTicks(), 13)
+					+ Lib.pad(process.getBlockedTicks(), 13)
+					+ Lib.pad(process.getVoluntarySwitches(), 9)
+					+ Lib.pad(process.getInvoluntarySwitches(), 9)
+					+ Lib.pad(process.numPageFaults, 9)
+					+ Lib.pad(process.numTLBMisses, 9)
+					+ Lib.pad(process.numSyscalls, 10));
+		}
+
+		if (processes.length > maxStatsRows)
+			System.out.println("(" + (processes.length - maxStatsRows)
+					+ " more processes)");
+
+		if (numExitedProcesses > 0)
+			System.out.println(Lib.pad("(" + numExitedProcesses
+					+ " exited)", -23)
+					+ Lib.pad(exitedRunTicks, 13)
+					+ Lib.pad(exitedReadyTicks, 13)
+					+ Lib.pad(exitedBlockedTicks, 13)
+					+ Lib.pad(exitedVoluntarySwitches, 9)
+					+ Lib.pad(exitedInvoluntarySwitches, 9)
+					+ Lib.pad(exitedPageFaults, 9) + Lib.pad(exitedTLBMisses, 9)
+					+ Lib.pad(exitedSyscalls, 10));
+	}
+
+
 	/**
 	 * Handle a user exception. Called by <tt>UserKernel.exceptionHandler()</tt>
 	 * . The <i>cause</i> argument identifies which exception occurred; see the
@@ -1163,4 +1348,28 @@ public class UserProcess {
 
 	protected static Map<Integer, UserProcess> childMap = new HashMap<>();
 
+	/**
+	 * The processes that are running and have not exited, by process ID, for
+	 * <tt>procstats()</tt> and at halt.
+	 */
+	private static HashMap<Integer, UserProcess> liveProcesses =
+		new HashMap<Integer, UserProcess>();
+
+	/** The totals of the processes that have exited. */
+	private static long numExitedProcesses = 0;
+	private static long exitedRunTicks = 0, exitedReadyTicks = 0,
+			exitedBlockedTicks = 0;
+	private static long exitedVoluntarySwitches = 0,
+			exitedInvoluntarySwitches = 0;
+	private static long exitedPageFaults = 0, exitedTLBMisses = 0,
+			exitedSyscalls = 0;
+
+	private static final int maxStatsRows = 40;
+
+	/** The exceptions this process has caused. */
+	private int numSyscalls = 0, numPageFaults = 0, numTLBMisses = 0;
+
+	/** The <tt>struct procstats</tt> returned to the user. */
+	private byte[] statsBuffer = new byte[32];
+
 }
\ No newline at end of file